@@ -4,6 +4,7 @@ plugins {
     java
     application
     id("net.ltgt.errorprone") version "0.8.1"
+    id("me.champeau.gradle.jmh") version "0.5.0"
 }
 
 java {
@@ -45,6 +46,15 @@ tasks {
     }
 }
 
+jmh {
+    jmhVersion = "1.23"
+    // Same limit as the service runs with
+    jvmArgs = listOf("-Xmx128m")
+    // Machine-readable results to compare between releases
+    resultFormat = "JSON"
+    resultsFile = project.file("${project.buildDir}/reports/jmh/results.json")
+}
+
 application {
     // Define the main class for the application
     mainClassName = "ru.mail.polis.Client"
@@ -60,6 +70,12 @@ tasks.withType<JavaCompile> {
     compilerArgs.add("-Xlint:all")
 }
 
+// Benchmarks are compiled together with classes generated by JMH, which are not warning-free
+tasks.matching { it.name.contains("jmh", ignoreCase = true) }.withType<JavaCompile>().configureEach {
+    options.compilerArgs.remove("-Werror")
+    options.errorprone.isEnabled.set(false)
+}
+
 // Error prone options
 tasks.named<JavaCompile>("compileTestJava") {
     options.errorprone.isEnabled.set(false)
@@ -0,0 +1,119 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.s3ponia.CompactionStyle;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keys, values and prepared stores shared by benchmarks.
+ */
+final class BenchmarkData {
+    /* Same memtable size as DAOFactory gives */
+    static final long MEMORY = DAOFactory.MAX_HEAP / 16;
+    /* PersistenceDAO freezes memtable once less than 4 MB of its memory is left */
+    static final long FLUSH_THRESHOLD = MEMORY - 4 * 1024 * 1024;
+    /* Prepared memtables stay well below the threshold, so each of them is flushed only on close */
+    static final long TABLE_BYTES = FLUSH_THRESHOLD / 2;
+    /* Write benchmarks wrap around key space, so the store size is bounded by overwrites */
+    static final int KEY_SPACE = 1 << 18;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Key ordered by its index, so sequential indexes make sequential keys.
+     *
+     * @param index   - index of the key
+     * @param keySize - size in bytes, at least 9
+     */
+    @NotNull
+    static ByteBuffer key(final long index, final int keySize) {
+        final var key = ByteBuffer.allocate(keySize);
+        key.putLong(0, index);
+        return key;
+    }
+
+    /**
+     * Key between the keys of the index and the next one, so it is absent while inside key ranges of tables.
+     */
+    @NotNull
+    static ByteBuffer missingKey(final long index, final int keySize) {
+        final var key = key(index, keySize);
+        key.put(keySize - 1, (byte) 1);
+        return key;
+    }
+
+    @NotNull
+    static ByteBuffer value(final int valueSize) {
+        final var value = new byte[valueSize];
+        ThreadLocalRandom.current().nextBytes(value);
+        return ByteBuffer.wrap(value);
+    }
+
+    /**
+     * Number of records taking {@link #TABLE_BYTES} of memtable memory.
+     */
+    static int recordsPerTable(final int keySize, final int valueSize) {
+        // Memtable also counts sequence number and size of each record
+        return (int) (TABLE_BYTES / (keySize + valueSize + Long.BYTES + Integer.BYTES));
+    }
+
+    @NotNull
+    static File createDirectory() throws IOException {
+        return java.nio.file.Files.createTempDirectory("benchmark").toFile();
+    }
+
+    static void deleteDirectory(@NotNull final File data) throws IOException {
+        Files.recursiveDelete(data);
+    }
+
+    /**
+     * Configuration keeping tables as they were flushed, so their count stays as prepared.
+     */
+    @NotNull
+    static Config withoutCompaction() {
+        return Config.builder()
+                .compactionStyle(CompactionStyle.SIZE_TIERED)
+                .sizeTieredThresholds(Integer.MAX_VALUE, Integer.MAX_VALUE)
+                .maxTableCount(Integer.MAX_VALUE)
+                .maxOverlappingTables(Integer.MAX_VALUE)
+                .tombstoneCompactionRatio(2)
+                .build();
+    }
+
+    /**
+     * Flushes tables with interleaved keys, so each of them covers the whole key range.
+     * Table t holds keys of indexes t, t + tableCount, t + 2 * tableCount and so on.
+     *
+     * @param data       - store directory
+     * @param tableCount - number of tables
+     * @param keySize    - size of keys
+     * @param value      - value of every record
+     * @return number of records, keys of indexes below it are present
+     */
+    static int fill(@NotNull final File data,
+                    final int tableCount,
+                    final int keySize,
+                    @NotNull final ByteBuffer value) throws IOException {
+        final var records = recordsPerTable(keySize, value.remaining());
+        for (int table = 0; table < tableCount; table++) {
+            try (DAO dao = PersistenceDAO.of(data, MEMORY, withoutCompaction())) {
+                for (int i = 0; i < records; i++) {
+                    dao.upsert(key((long) i * tableCount + table, keySize), value.duplicate());
+                }
+            }
+        }
+        final var tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        if (tables == null || tables.length != tableCount) {
+            throw new IllegalStateException("Prepared " + (tables == null ? 0 : tables.length)
+                    + " tables instead of " + tableCount);
+        }
+        return tableCount * records;
+    }
+}
@@ -0,0 +1,61 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of {@link DAO#compact()} merging tables with interleaved keys into one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CompactionBenchmark {
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"100", "1024"})
+    public int valueSize;
+
+    @Param({"2", "8"})
+    public int tableCount;
+
+    private File data;
+    private DAO dao;
+
+    @Setup(Level.Invocation)
+    public void fill() throws IOException {
+        data = BenchmarkData.createDirectory();
+        BenchmarkData.fill(data, tableCount, keySize, BenchmarkData.value(valueSize));
+        dao = PersistenceDAO.of(data, BenchmarkData.MEMORY, BenchmarkData.withoutCompaction());
+    }
+
+    @TearDown(Level.Invocation)
+    public void delete() throws IOException {
+        dao.close();
+        BenchmarkData.deleteDirectory(data);
+    }
+
+    @Benchmark
+    public void compact() throws IOException {
+        dao.compact();
+    }
+}
@@ -0,0 +1,64 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to flush a memtable of {@link #FLUSH_BYTES} bytes of records into a table on close.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class FlushBenchmark {
+    static final long FLUSH_BYTES = BenchmarkData.TABLE_BYTES;
+
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"100", "1024"})
+    public int valueSize;
+
+    private File data;
+    private DAO dao;
+
+    @Setup(Level.Invocation)
+    public void fill() throws IOException {
+        data = BenchmarkData.createDirectory();
+        dao = PersistenceDAO.of(data, BenchmarkData.MEMORY);
+        final ByteBuffer value = BenchmarkData.value(valueSize);
+        final var records = BenchmarkData.recordsPerTable(keySize, valueSize);
+        for (long i = 0; i < records; i++) {
+            dao.upsert(BenchmarkData.key(i, keySize), value.duplicate());
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void delete() throws IOException {
+        BenchmarkData.deleteDirectory(data);
+    }
+
+    @Benchmark
+    public void flush() throws IOException {
+        dao.close();
+    }
+}
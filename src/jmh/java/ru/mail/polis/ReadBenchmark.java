@@ -0,0 +1,89 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point lookups of present and absent keys over tables with interleaved keys.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReadBenchmark {
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"100", "1024"})
+    public int valueSize;
+
+    @Param({"1", "8"})
+    public int tableCount;
+
+    private File data;
+    private DAO dao;
+    private int recordCount;
+
+    @Setup
+    public void open() throws IOException {
+        data = BenchmarkData.createDirectory();
+        recordCount = BenchmarkData.fill(data, tableCount, keySize, BenchmarkData.value(valueSize));
+        dao = PersistenceDAO.of(data, BenchmarkData.MEMORY, BenchmarkData.withoutCompaction());
+    }
+
+    @TearDown
+    public void close() throws IOException {
+        dao.close();
+        BenchmarkData.deleteDirectory(data);
+    }
+
+    @Benchmark
+    public ByteBuffer getHit() throws IOException {
+        final var index = ThreadLocalRandom.current().nextInt(recordCount);
+        return dao.get(BenchmarkData.key(index, keySize));
+    }
+
+    @Benchmark
+    public boolean getMiss() throws IOException {
+        final var index = ThreadLocalRandom.current().nextInt(recordCount);
+        try {
+            dao.get(BenchmarkData.missingKey(index, keySize));
+            return true;
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ByteBuffer getHitConcurrent() throws IOException {
+        return getHit();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean getMissConcurrent() throws IOException {
+        return getMiss();
+    }
+}
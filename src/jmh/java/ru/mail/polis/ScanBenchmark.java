@@ -0,0 +1,79 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Range scans of a fixed number of records starting at random keys, merging all tables.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ScanBenchmark {
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"100", "1024"})
+    public int valueSize;
+
+    @Param({"1", "8"})
+    public int tableCount;
+
+    @Param({"10", "1000"})
+    public int rangeLength;
+
+    private File data;
+    private DAO dao;
+    private int recordCount;
+
+    @Setup
+    public void open() throws IOException {
+        data = BenchmarkData.createDirectory();
+        recordCount = BenchmarkData.fill(data, tableCount, keySize, BenchmarkData.value(valueSize));
+        dao = PersistenceDAO.of(data, BenchmarkData.MEMORY, BenchmarkData.withoutCompaction());
+    }
+
+    @TearDown
+    public void close() throws IOException {
+        dao.close();
+        BenchmarkData.deleteDirectory(data);
+    }
+
+    @Benchmark
+    public void range(final Blackhole blackhole) throws IOException {
+        final var from = ThreadLocalRandom.current().nextInt(recordCount - rangeLength + 1);
+        final var records = dao.range(
+                BenchmarkData.key(from, keySize),
+                BenchmarkData.key(from + rangeLength, keySize));
+        while (records.hasNext()) {
+            blackhole.consume(records.next());
+        }
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void rangeConcurrent(final Blackhole blackhole) throws IOException {
+        range(blackhole);
+    }
+}
@@ -0,0 +1,82 @@
+package ru.mail.polis;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upserts with the default configuration, flushes and compactions run in background as they do in service.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class WriteBenchmark {
+    @Param({"16", "64"})
+    public int keySize;
+
+    @Param({"100", "1024"})
+    public int valueSize;
+
+    private final AtomicLong nextIndex = new AtomicLong();
+    private File data;
+    private DAO dao;
+    private ByteBuffer value;
+
+    @Setup
+    public void open() throws IOException {
+        data = BenchmarkData.createDirectory();
+        dao = PersistenceDAO.of(data, BenchmarkData.MEMORY);
+        value = BenchmarkData.value(valueSize);
+    }
+
+    @TearDown
+    public void close() throws IOException {
+        dao.close();
+        BenchmarkData.deleteDirectory(data);
+    }
+
+    @Benchmark
+    public void randomUpsert() throws IOException {
+        final var index = ThreadLocalRandom.current().nextInt(BenchmarkData.KEY_SPACE);
+        dao.upsert(BenchmarkData.key(index, keySize), value.duplicate());
+    }
+
+    @Benchmark
+    public void sequentialUpsert() throws IOException {
+        final var index = nextIndex.getAndIncrement() % BenchmarkData.KEY_SPACE;
+        dao.upsert(BenchmarkData.key(index, keySize), value.duplicate());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void randomUpsertConcurrent() throws IOException {
+        randomUpsert();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void sequentialUpsertConcurrent() throws IOException {
+        sequentialUpsert();
+    }
+}
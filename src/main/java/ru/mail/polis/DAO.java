@@ -22,7 +22,10 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -64,6 +67,22 @@ public interface DAO extends Closeable {
         return Iters.until(iterator(from), bound);
     }
 
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s starting at "from" key (inclusive)
+     * until given "to" key (exclusive) in <b>descending</b> order according to {@link Record#compareTo(Record)},
+     * i.e. records of {@link #range(ByteBuffer, ByteBuffer)} in reverse, the largest key first.
+     * This implementation collects the whole range, stores should walk their tables backwards instead.
+     */
+    @NotNull
+    default Iterator<Record> descendingRange(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        final List<Record> records = new ArrayList<>();
+        range(from, to).forEachRemaining(records::add);
+        Collections.reverse(records);
+        return records.iterator();
+    }
+
     /**
      * Obtains {@link Record} corresponding to given key.
      *
@@ -96,6 +115,25 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Applies upserts and removes of the batch in their order.
+     * Implementations may apply the batch atomically, this one applies mutations one by one.
+     */
+    default void write(@NotNull WriteBatch batch) throws IOException {
+        final DAO dao = this;
+        batch.forEach(new WriteBatch.Handler() {
+            @Override
+            public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+                dao.upsert(key, value);
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key) throws IOException {
+                dao.remove(key);
+            }
+        });
+    }
+
     /**
      * Perform compaction
      */
@@ -0,0 +1,63 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Group of upserts and removes applied by {@link DAO#write(WriteBatch)} in the order they were added.
+ */
+public final class WriteBatch {
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    /* Null for removes */
+    private final List<ByteBuffer> values = new ArrayList<>();
+
+    /**
+     * Receives mutations of a batch.
+     */
+    public interface Handler {
+        void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value) throws IOException;
+
+        void remove(@NotNull ByteBuffer key) throws IOException;
+    }
+
+    public WriteBatch upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        return add(key, value);
+    }
+
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        return add(key, null);
+    }
+
+    private WriteBatch add(@NotNull final ByteBuffer key, @Nullable final ByteBuffer value) {
+        keys.add(key);
+        values.add(value);
+        return this;
+    }
+
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * Passes mutations to the handler in the order they were added.
+     */
+    public void forEach(@NotNull final Handler handler) throws IOException {
+        for (int i = 0; i < keys.size(); i++) {
+            final ByteBuffer value = values.get(i);
+            if (value == null) {
+                handler.remove(keys.get(i));
+            } else {
+                handler.upsert(keys.get(i), value);
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Cache of table blocks shared by all tables of a {@link DiskManager}, bounded by total size of blocks.
+ * Split into independently locked segments, each evicting its least recently used blocks.
+ * Only compressed blocks are cached, decompressed, so only misses pay for decoding.
+ * Uncompressed blocks are read straight from mapped files, a copy would only double their memory.
+ */
+public final class BlockCache {
+    private static final int SEGMENTS = 16;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final boolean offHeap;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder mappedReads = new LongAdder();
+    private final LongAdder decodes = new LongAdder();
+    private final LongAdder decodeNanos = new LongAdder();
+
+    private BlockCache(final long capacity, final boolean offHeap) {
+        this.offHeap = offHeap;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(capacity / SEGMENTS);
+        }
+    }
+
+    /**
+     * Creates cache.
+     *
+     * @param capacity - total size of cached blocks in bytes, 0 disables caching
+     * @param offHeap  - whether to keep decoded blocks in direct memory
+     */
+    static BlockCache of(final long capacity, final boolean offHeap) {
+        return new BlockCache(capacity, offHeap);
+    }
+
+    private static final class Key {
+        private final Path table;
+        private final int block;
+
+        Key(@NotNull final Path table, final int block) {
+            this.table = table;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final var key = (Key) o;
+            return block == key.block && table.equals(key.table);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * table.hashCode() + block;
+        }
+    }
+
+    private static final class Segment {
+        /* Access ordered, so iteration starts from the least recently used block */
+        private final Map<Key, ByteBuffer> blocks = new LinkedHashMap<>(16, 0.75f, true);
+        private final long capacity;
+        private long size;
+
+        Segment(final long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized ByteBuffer find(@NotNull final Key key) {
+            return blocks.get(key);
+        }
+
+        synchronized void add(@NotNull final Key key, @NotNull final ByteBuffer block) {
+            final var previous = blocks.put(key, block);
+            size += block.capacity() - (previous == null ? 0 : previous.capacity());
+            final var iterator = blocks.entrySet().iterator();
+            while (size > capacity && iterator.hasNext()) {
+                size -= iterator.next().getValue().capacity();
+                iterator.remove();
+            }
+        }
+
+        synchronized void removeTable(@NotNull final Path table) {
+            final var iterator = blocks.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<Key, ByteBuffer> entry = iterator.next();
+                if (entry.getKey().table.equals(table)) {
+                    size -= entry.getValue().capacity();
+                    iterator.remove();
+                }
+            }
+        }
+
+        synchronized long sizeInBytes() {
+            return size;
+        }
+    }
+
+    private Segment segment(@NotNull final Key key) {
+        return segments[(key.hashCode() & Integer.MAX_VALUE) % SEGMENTS];
+    }
+
+    /**
+     * Counts a read of an uncompressed block, which is served by its mapped file and never cached.
+     *
+     * @param source - block contents in the file
+     * @return read-only block contents
+     */
+    @NotNull
+    ByteBuffer mapped(@NotNull final ByteBuffer source) {
+        mappedReads.increment();
+        return source.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns cached contents of the block or caches the ones decoded from the file.
+     *
+     * @param table   - table file
+     * @param block   - block index in the table
+     * @param decoder - decodes block contents from the file into a new buffer
+     * @return read-only block contents
+     */
+    @NotNull
+    ByteBuffer get(@NotNull final Path table, final int block, @NotNull final Supplier<ByteBuffer> decoder) {
+        final var key = new Key(table, block);
+        final var segment = segment(key);
+        final var cached = segment.find(key);
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        final var start = System.nanoTime();
+        final var decoded = decoder.get();
+        decodeNanos.add(System.nanoTime() - start);
+        decodes.increment();
+        if (decoded.remaining() > segment.capacity) {
+            return decoded;
+        }
+        // Decoded block is not shared with anyone, so on heap it is cached without copying
+        final var stored = offHeap
+                ? ByteBuffer.allocateDirect(decoded.remaining()).put(decoded.duplicate()).flip()
+                : decoded;
+        final var readOnly = stored.asReadOnlyBuffer();
+        segment.add(key, readOnly);
+        return readOnly;
+    }
+
+    /**
+     * Drops blocks of a deleted table, so a new file with the same name is not served stale data.
+     */
+    void invalidate(@NotNull final Path table) {
+        for (final var segment : segments) {
+            segment.removeTable(table);
+        }
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Number of uncompressed blocks read from mapped files, which bypass the cache.
+     */
+    public long getMappedReadCount() {
+        return mappedReads.sum();
+    }
+
+    /**
+     * Number of compressed blocks decoded on cache misses.
+     */
+    public long getDecodeCount() {
+        return decodes.sum();
+    }
+
+    /**
+     * Total time spent decoding compressed blocks.
+     */
+    public long getDecodeNanos() {
+        return decodeNanos.sum();
+    }
+
+    /**
+     * Total size of cached blocks.
+     */
+    public long sizeInBytes() {
+        long size = 0;
+        for (final var segment : segments) {
+            size += segment.sizeInBytes();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,619 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Table split into blocks of records. Only offsets and first keys of blocks are kept in memory,
+ * a seek binary-searches them and then scans one block.
+ * <pre>
+ * header: magic(long) version(int)
+ * blocks: records deadFlagSequence(long) sharedKeySize(int) keySuffixSize(int) valueSize(int) keySuffix value,
+ *         then restarts offset(int) of each record with whole key, then restartCount(int)
+ * index:  per block offset(long) firstKeySize(int) firstKey
+ * filter: Bloom filter bits
+ * keys:   lastKeySize(int) lastKey
+ * footer: indexOffset(long) filterOffset(long) recordCount(long) tombstoneCount(long) maxSequence(long)
+ *         keysOffset(long) hashCount(int) blockCount(int) compression(int) version(int) magic(long)
+ * </pre>
+ * The smallest key is the first key of the index, so key range of a table is known without reading blocks.
+ * Blocks of a compressed table are stored as rawSize(int) followed by the compressed block,
+ * or by the block as it is if compression did not shrink it. Index offsets point to stored blocks.
+ * Keys are front-coded: a record keeps only the part of its key following the prefix shared with
+ * the previous record, restart records keep whole keys, so a block is binary-searched over them.
+ * Blocks are mapped by regions of at most {@link #MAX_REGION_SIZE} bytes, so tables may exceed 2 GB.
+ */
+final class BlockDiskTable extends DiskTable {
+    /* Legacy tables start with a non-negative timestamp, so a negative magic tells formats apart */
+    static final long FORMAT_MAGIC = 0xDB10C4ED5574B1E5L;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = Long.BYTES + Integer.BYTES;
+    static final int FOOTER_SIZE = Long.BYTES * 6 + Integer.BYTES * 4 + Long.BYTES;
+    static final int RECORD_HEADER = Long.BYTES + Integer.BYTES * 3;
+    private static final long MAX_REGION_SIZE = Integer.MAX_VALUE;
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    /* Index, filter, keys and footer */
+    private final ByteBuffer meta;
+    /* Mappings of consecutive groups of blocks */
+    private final ByteBuffer[] regions;
+    private final long[] regionStarts;
+    private final int[] blockRegions;
+    /* Offsets of blocks, the last element is the end of data */
+    private final long[] blockOffsets;
+    /* Positions of first keys sizes in meta */
+    private final int[] firstKeys;
+    private final BloomFilter filter;
+    private final long recordCount;
+    private final long tombstoneCount;
+    private final long maxSequence;
+    private final Compression compression;
+    private final BlockCache cache;
+    @Nullable
+    private final ByteBuffer lastKey;
+
+    private BlockDiskTable(@NotNull final Path path,
+                           final int level,
+                           final int generation,
+                           @NotNull final FileChannel channel,
+                           @NotNull final BlockCache cache) throws IOException {
+        super(path, level, generation);
+        this.cache = cache;
+        final var size = channel.size();
+        final var version = readFully(channel, 0, HEADER_SIZE).getInt(Long.BYTES);
+        if (version != VERSION) {
+            throw new IOException("Unsupported table version " + version);
+        }
+        if (size < HEADER_SIZE + FOOTER_SIZE) {
+            throw new EOFException("Table is truncated");
+        }
+        final var footer = readFully(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+        if (footer.getLong(FOOTER_SIZE - Long.BYTES) != FORMAT_MAGIC
+                || footer.getInt(FOOTER_SIZE - Long.BYTES - Integer.BYTES) != version) {
+            throw new IOException("Table footer is corrupted");
+        }
+        final var indexOffset = footer.getLong();
+        final var filterOffset = footer.getLong();
+        recordCount = footer.getLong();
+        tombstoneCount = footer.getLong();
+        maxSequence = footer.getLong();
+        final var keysOffset = footer.getLong();
+        final var hashCount = footer.getInt();
+        final var blockCount = footer.getInt();
+        compression = compression(footer.getInt());
+        // Mapping outlives the channel and is released by GC
+        meta = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, size - indexOffset);
+
+        blockOffsets = new long[blockCount + 1];
+        firstKeys = new int[blockCount];
+        var position = 0;
+        for (int i = 0; i < blockCount; i++) {
+            blockOffsets[i] = meta.getLong(position);
+            firstKeys[i] = position + Long.BYTES;
+            position += Long.BYTES + Integer.BYTES + meta.getInt(position + Long.BYTES);
+        }
+        blockOffsets[blockCount] = indexOffset;
+
+        blockRegions = new int[blockCount];
+        final var starts = new ArrayList<Long>();
+        for (int i = 0; i < blockCount; i++) {
+            if (starts.isEmpty() || blockOffsets[i + 1] - starts.get(starts.size() - 1) > MAX_REGION_SIZE) {
+                starts.add(blockOffsets[i]);
+            }
+            blockRegions[i] = starts.size() - 1;
+        }
+        regionStarts = new long[starts.size()];
+        regions = new ByteBuffer[starts.size()];
+        for (int i = 0; i < regions.length; i++) {
+            regionStarts[i] = starts.get(i);
+            final var end = i + 1 < regions.length ? starts.get(i + 1) : indexOffset;
+            regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, regionStarts[i], end - regionStarts[i]);
+        }
+
+        final var filterStart = (int) (filterOffset - indexOffset);
+        final var filterEnd = (int) (keysOffset - indexOffset);
+        filter = hashCount == 0 ? null : BloomFilter.of(
+                meta.duplicate().position(filterStart).limit(filterEnd).slice().asLongBuffer(), hashCount);
+        if (blockCount > 0) {
+            final var keyStart = filterEnd + Integer.BYTES;
+            lastKey = meta.duplicate().position(keyStart).limit(keyStart + meta.getInt(filterEnd)).slice();
+        } else {
+            lastKey = null;
+        }
+    }
+
+    private static Compression compression(final int ordinal) throws IOException {
+        final var values = Compression.values();
+        if (ordinal < 0 || ordinal >= values.length) {
+            throw new IOException("Unsupported table compression " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    static BlockDiskTable open(@NotNull final Path path,
+                               final int level,
+                               final int generation,
+                               @NotNull final FileChannel channel,
+                               @NotNull final BlockCache cache) throws IOException {
+        return new BlockDiskTable(path, level, generation, channel, cache);
+    }
+
+    private static ByteBuffer readFully(@NotNull final FileChannel channel,
+                                        final long position,
+                                        final int size) throws IOException {
+        final var buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Table is truncated");
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Checks whether the file starts with block format header.
+     */
+    static boolean hasHeader(@NotNull final FileChannel channel) throws IOException {
+        return channel.size() >= HEADER_SIZE && readFully(channel, 0, Long.BYTES).getLong(0) == FORMAT_MAGIC;
+    }
+
+    @Override
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    long getTombstoneCount() {
+        return tombstoneCount;
+    }
+
+    @Override
+    long getMaxSequence() {
+        return maxSequence;
+    }
+
+    @Override
+    @Nullable
+    ByteBuffer firstKey() {
+        return firstKeys.length == 0 ? null : firstKey(0);
+    }
+
+    @Override
+    @Nullable
+    ByteBuffer lastKey() {
+        return lastKey;
+    }
+
+    @Override
+    long sizeInBytes() {
+        return blockOffsets[blockOffsets.length - 1] + meta.limit();
+    }
+
+    private ByteBuffer firstKey(final int block) {
+        final var position = firstKeys[block];
+        final var keyStart = position + Integer.BYTES;
+        return meta.duplicate().position(keyStart).limit(keyStart + meta.getInt(position)).slice();
+    }
+
+    private ByteBuffer block(final int index) {
+        final var region = blockRegions[index];
+        final var start = (int) (blockOffsets[index] - regionStarts[region]);
+        final var end = (int) (blockOffsets[index + 1] - regionStarts[region]);
+        final var stored = regions[region].duplicate().position(start).limit(end).slice();
+        if (compression == Compression.NONE) {
+            return cache.mapped(stored);
+        }
+        final var data = stored.duplicate().position(Integer.BYTES).slice();
+        if (data.remaining() == stored.getInt(0)) {
+            // Block which compression did not make smaller is stored as is
+            return cache.mapped(data);
+        }
+        return cache.get(file, index, () -> inflate(stored));
+    }
+
+    private static ByteBuffer inflate(@NotNull final ByteBuffer stored) {
+        final var rawSize = stored.getInt(0);
+        final var data = stored.duplicate().position(Integer.BYTES).slice();
+        final var block = ByteBuffer.allocate(rawSize);
+        final var inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(data);
+        try {
+            while (block.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(block) == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("Table block is truncated");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Table block is corrupted", e);
+        }
+        if (block.hasRemaining()) {
+            throw new IllegalStateException("Table block is truncated");
+        }
+        return block.flip();
+    }
+
+    /**
+     * Binary search over first keys of blocks.
+     *
+     * @return index of the last block which first key is not greater than the key, 0 if there is no such block
+     */
+    private int findBlock(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = firstKeys.length - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int compareResult = firstKey(mid).compareTo(key);
+            if (compareResult < 0) {
+                left = mid + 1;
+            } else if (compareResult > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return Math.max(0, right);
+    }
+
+    /**
+     * Record of a block with its key restored into a buffer reused while the cursor moves forward.
+     */
+    private final class Cursor {
+        private final ByteBuffer block;
+        private final ByteBuffer reader;
+        /* End of records, restarts follow */
+        private final int end;
+        private int position;
+        private int next;
+        private byte[] key = new byte[64];
+        private ByteBuffer keyView = ByteBuffer.wrap(key);
+        private int sharedSize;
+
+        Cursor(@NotNull final ByteBuffer block) {
+            this.block = block;
+            this.reader = block.duplicate();
+            this.end = block.hasRemaining() ? block.limit() - Integer.BYTES * (restartCount() + 1) : block.limit();
+        }
+
+        int restartCount() {
+            return block.hasRemaining() ? block.getInt(block.limit() - Integer.BYTES) : 1;
+        }
+
+        int restart(final int index) {
+            return block.hasRemaining() ? block.getInt(end + Integer.BYTES * index) : 0;
+        }
+
+        /**
+         * End of records of the restart interval.
+         */
+        int restartEnd(final int index) {
+            return index + 1 < restartCount() ? restart(index + 1) : end;
+        }
+
+        private int sharedSize(final int record) {
+            return block.getInt(record + Long.BYTES);
+        }
+
+        private int suffixSize(final int record) {
+            return block.getInt(RECORD_HEADER - Integer.BYTES * 2 + record);
+        }
+
+        private int valueSize(final int record) {
+            return block.getInt(RECORD_HEADER - Integer.BYTES + record);
+        }
+
+        /**
+         * Whole key of a restart record, without moving the cursor.
+         */
+        ByteBuffer restartKey(final int index) {
+            final var record = restart(index);
+            final var keyStart = record + RECORD_HEADER;
+            return block.duplicate().position(keyStart).limit(keyStart + suffixSize(record)).slice();
+        }
+
+        boolean isValid() {
+            return position < end;
+        }
+
+        int position() {
+            return position;
+        }
+
+        boolean hasNextRecord() {
+            return next < end;
+        }
+
+        /**
+         * Moves to the record, which must keep its whole key or follow the current one.
+         */
+        void seek(final int record) {
+            position = record;
+            if (position >= end) {
+                next = end;
+                return;
+            }
+            sharedSize = sharedSize(position);
+            final var suffixSize = suffixSize(position);
+            final var keySize = sharedSize + suffixSize;
+            if (keySize > key.length) {
+                key = Arrays.copyOf(key, Math.max(key.length * 2, keySize));
+                keyView = ByteBuffer.wrap(key);
+            }
+            reader.limit(position + RECORD_HEADER + suffixSize).position(position + RECORD_HEADER);
+            reader.get(key, sharedSize, suffixSize);
+            keyView.limit(keySize);
+            next = position + RECORD_HEADER + suffixSize + valueSize(position);
+        }
+
+        void advance() {
+            seek(next);
+        }
+
+        /**
+         * Key of the current record, valid until the cursor moves.
+         */
+        ByteBuffer key() {
+            return keyView;
+        }
+
+        /**
+         * Key of the current record owned by the caller.
+         */
+        ByteBuffer copyKey() {
+            if (sharedSize == 0) {
+                final var keyStart = position + RECORD_HEADER;
+                return block.duplicate().position(keyStart).limit(keyStart + keyView.limit()).slice();
+            }
+            return ByteBuffer.wrap(Arrays.copyOf(key, keyView.limit()));
+        }
+
+        Table.ICell cell() {
+            return new BlockCell(copyKey(), block, next - valueSize(position), position);
+        }
+
+        /**
+         * Binary search over keys of restart records.
+         *
+         * @return index of the last restart with key less than the given one, -1 if there is no such restart
+         */
+        int restartBefore(@NotNull final ByteBuffer target) {
+            int left = 0;
+            int right = restartCount() - 1;
+            while (left <= right) {
+                final int mid = (left + right) >>> 1;
+                if (restartKey(mid).compareTo(target) < 0) {
+                    left = mid + 1;
+                } else {
+                    right = mid - 1;
+                }
+            }
+            return right;
+        }
+
+        /**
+         * Moves to the first record with key not less than the given one, past the end if there is none.
+         */
+        void seekTo(@NotNull final ByteBuffer target) {
+            final var right = restartBefore(target);
+            // The first record always keeps its whole key
+            seek(right > 0 ? restart(right) : 0);
+            while (isValid() && key().compareTo(target) < 0) {
+                advance();
+            }
+        }
+    }
+
+    @Override
+    public void erase() throws IOException {
+        cache.invalidate(file);
+        super.erase();
+    }
+
+    @Override
+    public boolean mightContain(final long hash) {
+        return filter == null || filter.mightContain(hash);
+    }
+
+    @Override
+    @Nullable
+    Table.Value find(@NotNull final ByteBuffer key) {
+        if (firstKeys.length == 0) {
+            return null;
+        }
+        final var cursor = new Cursor(block(findBlock(key)));
+        cursor.seekTo(key);
+        if (cursor.isValid() && cursor.key().equals(key)) {
+            return cursor.cell().getValue();
+        }
+        return null;
+    }
+
+    @Override
+    public Iterator<Table.ICell> iterator() {
+        return new BlockIterator(0, null);
+    }
+
+    @Override
+    public Iterator<Table.ICell> iterator(@NotNull final ByteBuffer from) {
+        if (firstKeys.length == 0) {
+            return new BlockIterator(0, null);
+        }
+        return new BlockIterator(findBlock(from), from);
+    }
+
+    @Override
+    Iterator<Table.ICell> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return new BlockIterator(findBlock(from), from, to);
+    }
+
+    private class BlockIterator implements Iterator<Table.ICell> {
+        /* Key after the last one, blocks starting at it or later are not read */
+        @Nullable
+        private final ByteBuffer to;
+        private int blockIndex;
+        private Cursor cursor;
+        private boolean inRange;
+
+        BlockIterator(final int blockIndex, @Nullable final ByteBuffer from) {
+            this(blockIndex, from, null);
+        }
+
+        BlockIterator(final int blockIndex, @Nullable final ByteBuffer from, @Nullable final ByteBuffer to) {
+            this.to = to;
+            this.blockIndex = blockIndex;
+            this.cursor = new Cursor(blockIndex < firstKeys.length ? block(blockIndex) : ByteBuffer.allocate(0));
+            if (from == null) {
+                cursor.seek(0);
+            } else {
+                cursor.seekTo(from);
+            }
+            skipExhaustedBlock();
+        }
+
+        private void skipExhaustedBlock() {
+            while (!cursor.isValid() && blockIndex < firstKeys.length - 1
+                    && (to == null || firstKey(blockIndex + 1).compareTo(to) < 0)) {
+                cursor = new Cursor(block(++blockIndex));
+                cursor.seek(0);
+            }
+            inRange = cursor.isValid() && (to == null || cursor.key().compareTo(to) < 0);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return inRange;
+        }
+
+        @Override
+        public Table.ICell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more records in table");
+            }
+            final var cell = cursor.cell();
+            cursor.advance();
+            skipExhaustedBlock();
+            return cell;
+        }
+    }
+
+    @Override
+    public Iterator<Table.ICell> descendingIterator(@Nullable final ByteBuffer to) {
+        return new DescendingBlockIterator(to);
+    }
+
+    /**
+     * Walks blocks backwards one restart interval at a time. Front-coded keys are restored only forward,
+     * so records of an interval are decoded from its restart and then handed out in reverse.
+     */
+    private class DescendingBlockIterator implements Iterator<Table.ICell> {
+        @Nullable
+        private final ByteBuffer to;
+        /* Decoded records of the current interval, the next one first */
+        private final ArrayDeque<Table.ICell> interval = new ArrayDeque<>();
+        private int blockIndex;
+        private Cursor cursor;
+        /* Next interval to decode is the one before it */
+        private int restartIndex;
+
+        DescendingBlockIterator(@Nullable final ByteBuffer to) {
+            this.to = to;
+            if (firstKeys.length == 0) {
+                blockIndex = -1;
+                return;
+            }
+            blockIndex = to == null ? firstKeys.length - 1 : findBlock(to);
+            cursor = new Cursor(block(blockIndex));
+            restartIndex = to == null ? cursor.restartCount() : cursor.restartBefore(to) + 1;
+            fill();
+        }
+
+        /**
+         * Decodes the previous interval holding records below the bound, moving to previous blocks as needed.
+         */
+        private void fill() {
+            while (interval.isEmpty() && blockIndex >= 0) {
+                if (restartIndex == 0) {
+                    if (--blockIndex >= 0) {
+                        cursor = new Cursor(block(blockIndex));
+                        restartIndex = cursor.restartCount();
+                    }
+                    continue;
+                }
+                restartIndex--;
+                final var intervalEnd = cursor.restartEnd(restartIndex);
+                cursor.seek(cursor.restart(restartIndex));
+                while (cursor.isValid() && cursor.position() < intervalEnd
+                        && (to == null || cursor.key().compareTo(to) < 0)) {
+                    interval.push(cursor.cell());
+                    cursor.advance();
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !interval.isEmpty();
+        }
+
+        @Override
+        public Table.ICell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more records in table");
+            }
+            final var cell = interval.pop();
+            fill();
+            return cell;
+        }
+    }
+
+    private class BlockCell implements Table.ICell {
+        private final ByteBuffer key;
+        private final ByteBuffer block;
+        /* Position of the value, its header fields precede the key */
+        private final int valueStart;
+        private final int record;
+
+        BlockCell(@NotNull final ByteBuffer key,
+                  @NotNull final ByteBuffer block,
+                  final int valueStart,
+                  final int record) {
+            this.key = key;
+            this.block = block;
+            this.valueStart = valueStart;
+            this.record = record;
+        }
+
+        @Override
+        @NotNull
+        public ByteBuffer getKey() {
+            return key;
+        }
+
+        @Override
+        @NotNull
+        public Table.Value getValue() {
+            final var valueSize = block.getInt(record + RECORD_HEADER - Integer.BYTES);
+            final var value = block.duplicate().position(valueStart).limit(valueStart + valueSize).slice();
+            return Table.Value.of(value, block.getLong(record), generation);
+        }
+
+        @Override
+        public int compareTo(@NotNull final Table.ICell o) {
+            return Comparator.comparing(Table.ICell::getKey).thenComparing(Table.ICell::getValue).compare(this, o);
+        }
+    }
+}
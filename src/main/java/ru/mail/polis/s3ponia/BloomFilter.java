@@ -0,0 +1,93 @@
+package ru.mail.polis.s3ponia;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * Bloom filter over table keys. Bits are kept in a {@link LongBuffer},
+ * so a filter loaded from disk is a view of the mapped file.
+ * Probe positions use double hashing of one murmur3 hash.
+ */
+final class BloomFilter {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final int MAX_HASH_COUNT = 30;
+    private final LongBuffer bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    private BloomFilter(@NotNull final LongBuffer bits, final int hashCount) {
+        this.bits = bits;
+        this.bitCount = (long) bits.limit() * Long.SIZE;
+        this.hashCount = hashCount;
+    }
+
+    /**
+     * Creates empty filter sized for given number of keys.
+     *
+     * @param keys       - expected number of keys
+     * @param bitsPerKey - filter bits spent per key
+     */
+    static BloomFilter create(final int keys, final int bitsPerKey) {
+        final var words = Math.max(1, ((long) keys * bitsPerKey + Long.SIZE - 1) / Long.SIZE);
+        final var hashCount = (int) Math.round(bitsPerKey * Math.log(2));
+        return new BloomFilter(LongBuffer.allocate((int) words),
+                Math.max(1, Math.min(MAX_HASH_COUNT, hashCount)));
+    }
+
+    static BloomFilter of(@NotNull final LongBuffer bits, final int hashCount) {
+        return new BloomFilter(bits, hashCount);
+    }
+
+    /**
+     * Hash of the key, filters are built from hashes collected while keys are written.
+     */
+    static long hash(@NotNull final ByteBuffer key) {
+        return HASH.hashBytes(key.duplicate()).asLong();
+    }
+
+    void add(final long hash) {
+        final var h1 = (int) hash;
+        final var h2 = (int) (hash >>> Integer.SIZE);
+        for (int i = 1; i <= hashCount; i++) {
+            final var bit = index(h1 + i * h2);
+            final var word = (int) (bit / Long.SIZE);
+            bits.put(word, bits.get(word) | (1L << bit));
+        }
+    }
+
+    /**
+     * Checks the key by its {@link #hash(ByteBuffer)}, so a key probed against many filters is hashed once.
+     */
+    boolean mightContain(final long hash) {
+        final var h1 = (int) hash;
+        final var h2 = (int) (hash >>> Integer.SIZE);
+        for (int i = 1; i <= hashCount; i++) {
+            final var bit = index(h1 + i * h2);
+            if ((bits.get((int) (bit / Long.SIZE)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long index(final int combinedHash) {
+        return (combinedHash & Integer.MAX_VALUE) % bitCount;
+    }
+
+    int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * Serialized bits.
+     */
+    ByteBuffer toByteBuffer() {
+        final var buffer = ByteBuffer.allocate(bits.limit() * Long.BYTES);
+        buffer.asLongBuffer().put(bits.duplicate().rewind());
+        return buffer;
+    }
+}
@@ -0,0 +1,97 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Tables chosen to be merged together with the level and generation of the output tables.
+ * Output generation must keep records ordered against tables left out of the compaction.
+ */
+final class Compaction {
+    private final List<DiskTable> inputs;
+    private final int level;
+    private final int generation;
+    private final boolean major;
+    private final boolean split;
+
+    private Compaction(@NotNull final List<DiskTable> inputs,
+                       final int level,
+                       final int generation,
+                       final boolean major,
+                       final boolean split) {
+        this.inputs = List.copyOf(inputs);
+        this.level = level;
+        this.generation = generation;
+        this.major = major;
+        this.split = split;
+    }
+
+    /**
+     * Creates compaction into a level of leveled tree, where deeper levels hold older records.
+     */
+    static Compaction toLevel(@NotNull final List<DiskTable> inputs, final int level) {
+        return new Compaction(inputs, level, -level, false, true);
+    }
+
+    /**
+     * Creates compaction of tables adjacent in generation order, a single output table replaces them at level 0.
+     */
+    static Compaction adjacent(@NotNull final List<DiskTable> inputs) {
+        var generation = Integer.MIN_VALUE;
+        for (final var input : inputs) {
+            generation = Math.max(generation, input.generation);
+        }
+        return new Compaction(inputs, 0, generation, false, false);
+    }
+
+    /**
+     * Merges all tables into the deepest level.
+     */
+    static Compaction major(@NotNull final List<DiskTable> tables) {
+        var level = 1;
+        for (final var table : tables) {
+            level = Math.max(level, table.level);
+        }
+        return new Compaction(tables, level, -level, true, true);
+    }
+
+    @NotNull
+    List<DiskTable> getInputs() {
+        return inputs;
+    }
+
+    int getLevel() {
+        return level;
+    }
+
+    /**
+     * Whether output is cut into tables of {@link Config#getTargetTableSize()}.
+     */
+    boolean isSplit() {
+        return split;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Lowest generation among inputs, tables of lower generations hold older records.
+     */
+    int getOldestGeneration() {
+        var oldest = Integer.MAX_VALUE;
+        for (final var input : inputs) {
+            oldest = Math.min(oldest, input.generation);
+        }
+        return oldest;
+    }
+
+    /**
+     * A single table that overlaps nothing in the target level may be moved there without rewriting.
+     * Major compaction always rewrites, so tombstones are dropped.
+     */
+    boolean isTrivialMove() {
+        return !major && inputs.size() == 1 && inputs.get(0).level < level;
+    }
+}
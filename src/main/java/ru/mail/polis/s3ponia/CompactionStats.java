@@ -0,0 +1,84 @@
+package ru.mail.polis.s3ponia;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of bytes written to tables, used to compare compaction strategies and block codecs.
+ * Write amplification is the ratio of all table bytes written to bytes of flushed memtables.
+ */
+public final class CompactionStats {
+    private final LongAdder flushedBytes = new LongAdder();
+    private final LongAdder compactedBytes = new LongAdder();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder rawBlockBytes = new LongAdder();
+    private final LongAdder storedBlockBytes = new LongAdder();
+
+    void flushed(final long bytes) {
+        flushedBytes.add(bytes);
+    }
+
+    void compacted(final long bytes) {
+        compactedBytes.add(bytes);
+        compactions.increment();
+    }
+
+    void blocksWritten(final long rawBytes, final long storedBytes) {
+        rawBlockBytes.add(rawBytes);
+        storedBlockBytes.add(storedBytes);
+    }
+
+    /**
+     * Bytes of tables written by memtable flushes.
+     */
+    public long getFlushedBytes() {
+        return flushedBytes.sum();
+    }
+
+    /**
+     * Bytes of tables written by compactions.
+     */
+    public long getCompactedBytes() {
+        return compactedBytes.sum();
+    }
+
+    /**
+     * Number of compactions that rewrote tables, moves without rewriting are not counted.
+     */
+    public long getCompactionCount() {
+        return compactions.sum();
+    }
+
+    /**
+     * Bytes of blocks written to tables before compression.
+     */
+    public long getRawBlockBytes() {
+        return rawBlockBytes.sum();
+    }
+
+    /**
+     * Bytes of blocks written to tables as stored, after compression.
+     */
+    public long getStoredBlockBytes() {
+        return storedBlockBytes.sum();
+    }
+
+    /**
+     * Bytes of written blocks per byte stored.
+     *
+     * @return 0 if nothing was written yet
+     */
+    public double getCompressionRatio() {
+        final var stored = getStoredBlockBytes();
+        return stored == 0 ? 0 : (double) getRawBlockBytes() / stored;
+    }
+
+    /**
+     * Total bytes written to tables per byte flushed.
+     *
+     * @return 0 if nothing was flushed yet
+     */
+    public double getWriteAmplification() {
+        final var flushed = getFlushedBytes();
+        return flushed == 0 ? 0 : (double) (flushed + getCompactedBytes()) / flushed;
+    }
+}
@@ -0,0 +1,32 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Decides which tables to merge in background. Called after each flush and after each compaction
+ * until it returns null.
+ */
+interface CompactionStrategy {
+    /**
+     * Picks the next compaction.
+     *
+     * @param tables - current tables ordered by generation
+     * @return null if nothing needs compaction
+     */
+    @Nullable
+    Compaction pick(@NotNull List<DiskTable> tables);
+
+    static CompactionStrategy of(@NotNull final Config config) {
+        switch (config.getCompactionStyle()) {
+            case SIZE_TIERED:
+                return new SizeTieredCompaction(config);
+            case LEVELED:
+                return new LeveledCompaction(config);
+            default:
+                throw new IllegalArgumentException("Unknown compaction style " + config.getCompactionStyle());
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package ru.mail.polis.s3ponia;
+
+/**
+ * Defines how tables are merged in background.
+ */
+public enum CompactionStyle {
+    /**
+     * Tables are organized in levels of growing size with disjoint tables in each level.
+     * Keeps few tables to read at the cost of rewriting records many times.
+     */
+    LEVELED,
+    /**
+     * Runs of similarly sized tables are merged into one larger table.
+     * Rewrites records fewer times, but reads may have to check more tables.
+     */
+    SIZE_TIERED
+}
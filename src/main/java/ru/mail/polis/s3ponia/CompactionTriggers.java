@@ -0,0 +1,74 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Conditions calling for compaction regardless of table sizes: tables mostly made of tombstones
+ * and key ranges covered by many tables.
+ */
+final class CompactionTriggers {
+    /* Smaller tables are left to regular compaction, rewriting them for tombstones is not worth it */
+    static final long MIN_TOMBSTONE_RECORDS = 1024;
+
+    private CompactionTriggers() {
+    }
+
+    /**
+     * Finds the table with the largest share of tombstones.
+     *
+     * @param tables - tables to check
+     * @param ratio  - share of tombstones the table must exceed
+     * @return null if no table has that many tombstones
+     */
+    @Nullable
+    static DiskTable mostTombstones(@NotNull final List<DiskTable> tables, final double ratio) {
+        DiskTable result = null;
+        var resultRatio = ratio;
+        for (final var table : tables) {
+            final var tableRatio = table.tombstoneRatio();
+            if (table.getRecordCount() >= MIN_TOMBSTONE_RECORDS && tableRatio > resultRatio) {
+                result = table;
+                resultRatio = tableRatio;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the key covered by key ranges of the most tables, a read of it looks into each of them.
+     *
+     * @param tables - tables to check
+     * @return tables covering the key in the order of the given list
+     */
+    @NotNull
+    static List<DiskTable> deepestOverlap(@NotNull final List<DiskTable> tables) {
+        final var firstKeys = new ByteBuffer[tables.size()];
+        final var lastKeys = new ByteBuffer[tables.size()];
+        for (int i = 0; i < tables.size(); i++) {
+            firstKeys[i] = tables.get(i).firstKey();
+            lastKeys[i] = tables.get(i).lastKey();
+        }
+        // The deepest point is always the first key of some table
+        var deepest = List.<DiskTable>of();
+        for (final var point : firstKeys) {
+            if (point == null) {
+                continue;
+            }
+            final var covering = new ArrayList<DiskTable>();
+            for (int i = 0; i < tables.size(); i++) {
+                if (firstKeys[i] != null && firstKeys[i].compareTo(point) <= 0 && point.compareTo(lastKeys[i]) <= 0) {
+                    covering.add(tables.get(i));
+                }
+            }
+            if (covering.size() > deepest.size()) {
+                deepest = covering;
+            }
+        }
+        return deepest;
+    }
+}
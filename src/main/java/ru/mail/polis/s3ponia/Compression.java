@@ -0,0 +1,16 @@
+package ru.mail.polis.s3ponia;
+
+/**
+ * Codec of table blocks. Recorded in each table by ordinal, so new codecs may only be appended.
+ */
+public enum Compression {
+    /**
+     * Blocks are stored as they are.
+     */
+    NONE,
+    /**
+     * Blocks are compressed with {@link java.util.zip.Deflater} at its fastest level.
+     * Blocks that do not shrink are stored as they are.
+     */
+    DEFLATE
+}
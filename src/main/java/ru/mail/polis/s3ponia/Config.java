@@ -0,0 +1,500 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Tunable settings of {@link PersistenceDAO}.
+ */
+public final class Config {
+    static final long DEFAULT_FSYNC_INTERVAL_MS = 1000;
+    static final int DEFAULT_BLOOM_BITS_PER_KEY = 10;
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+    static final int DEFAULT_BLOCK_RESTART_INTERVAL = 16;
+    static final long DEFAULT_BLOCK_CACHE_SIZE = 8 * 1024 * 1024;
+    static final int DEFAULT_LEVEL_ZERO_COMPACTION_TRIGGER = 4;
+    static final long DEFAULT_LEVEL_BASE_SIZE = 32 * 1024 * 1024;
+    static final long DEFAULT_TARGET_TABLE_SIZE = 8 * 1024 * 1024;
+    static final int DEFAULT_SIZE_TIERED_MIN_THRESHOLD = 4;
+    static final int DEFAULT_SIZE_TIERED_MAX_THRESHOLD = 32;
+    static final double DEFAULT_SIZE_TIERED_BUCKET_RATIO = 1.5;
+    static final int DEFAULT_MAX_TABLE_COUNT = 64;
+    static final int DEFAULT_MAX_OVERLAPPING_TABLES = 16;
+    static final double DEFAULT_TOMBSTONE_COMPACTION_RATIO = 0.5;
+    static final int DEFAULT_VALUE_THRESHOLD = 0;
+    static final long DEFAULT_VALUE_LOG_FILE_SIZE = 8 * 1024 * 1024;
+    static final double DEFAULT_VALUE_LOG_GARBAGE_RATIO = 0.5;
+
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMs;
+    private final boolean offHeapMemTable;
+    private final int bloomBitsPerKey;
+    private final int blockSize;
+    private final int blockRestartInterval;
+    private final Compression compression;
+    private final long blockCacheSize;
+    private final boolean offHeapBlockCache;
+    private final boolean forceTables;
+    private final int levelZeroCompactionTrigger;
+    private final long levelBaseSize;
+    private final long targetTableSize;
+    private final CompactionStyle compactionStyle;
+    private final int sizeTieredMinThreshold;
+    private final int sizeTieredMaxThreshold;
+    private final double sizeTieredBucketRatio;
+    private final int maxTableCount;
+    private final int maxOverlappingTables;
+    private final double tombstoneCompactionRatio;
+    private final int valueThreshold;
+    private final long valueLogFileSize;
+    private final double valueLogGarbageRatio;
+
+    private Config(@NotNull final Builder builder) {
+        this.fsyncPolicy = builder.fsyncPolicy;
+        this.fsyncIntervalMs = builder.fsyncIntervalMs;
+        this.offHeapMemTable = builder.offHeapMemTable;
+        this.bloomBitsPerKey = builder.bloomBitsPerKey;
+        this.blockSize = builder.blockSize;
+        this.blockRestartInterval = builder.blockRestartInterval;
+        this.compression = builder.compression;
+        this.blockCacheSize = builder.blockCacheSize;
+        this.offHeapBlockCache = builder.offHeapBlockCache;
+        this.forceTables = builder.forceTables;
+        this.levelZeroCompactionTrigger = builder.levelZeroCompactionTrigger;
+        this.levelBaseSize = builder.levelBaseSize;
+        this.targetTableSize = builder.targetTableSize;
+        this.compactionStyle = builder.compactionStyle;
+        this.sizeTieredMinThreshold = builder.sizeTieredMinThreshold;
+        this.sizeTieredMaxThreshold = builder.sizeTieredMaxThreshold;
+        this.sizeTieredBucketRatio = builder.sizeTieredBucketRatio;
+        this.maxTableCount = builder.maxTableCount;
+        this.maxOverlappingTables = builder.maxOverlappingTables;
+        this.tombstoneCompactionRatio = builder.tombstoneCompactionRatio;
+        this.valueThreshold = builder.valueThreshold;
+        this.valueLogFileSize = builder.valueLogFileSize;
+        this.valueLogGarbageRatio = builder.valueLogGarbageRatio;
+    }
+
+    public static Config defaults() {
+        return builder().build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @NotNull
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public long getFsyncIntervalMs() {
+        return fsyncIntervalMs;
+    }
+
+    public boolean isOffHeapMemTable() {
+        return offHeapMemTable;
+    }
+
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockRestartInterval() {
+        return blockRestartInterval;
+    }
+
+    @NotNull
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    public boolean isOffHeapBlockCache() {
+        return offHeapBlockCache;
+    }
+
+    public boolean isForceTables() {
+        return forceTables;
+    }
+
+    public int getLevelZeroCompactionTrigger() {
+        return levelZeroCompactionTrigger;
+    }
+
+    public long getLevelBaseSize() {
+        return levelBaseSize;
+    }
+
+    public long getTargetTableSize() {
+        return targetTableSize;
+    }
+
+    @NotNull
+    public CompactionStyle getCompactionStyle() {
+        return compactionStyle;
+    }
+
+    public int getSizeTieredMinThreshold() {
+        return sizeTieredMinThreshold;
+    }
+
+    public int getSizeTieredMaxThreshold() {
+        return sizeTieredMaxThreshold;
+    }
+
+    public double getSizeTieredBucketRatio() {
+        return sizeTieredBucketRatio;
+    }
+
+    public int getMaxTableCount() {
+        return maxTableCount;
+    }
+
+    public int getMaxOverlappingTables() {
+        return maxOverlappingTables;
+    }
+
+    public double getTombstoneCompactionRatio() {
+        return tombstoneCompactionRatio;
+    }
+
+    public int getValueThreshold() {
+        return valueThreshold;
+    }
+
+    public long getValueLogFileSize() {
+        return valueLogFileSize;
+    }
+
+    public double getValueLogGarbageRatio() {
+        return valueLogGarbageRatio;
+    }
+
+    public static final class Builder {
+        private FsyncPolicy fsyncPolicy = FsyncPolicy.PERIODIC;
+        private long fsyncIntervalMs = DEFAULT_FSYNC_INTERVAL_MS;
+        private boolean offHeapMemTable;
+        private int bloomBitsPerKey = DEFAULT_BLOOM_BITS_PER_KEY;
+        private int blockSize = DEFAULT_BLOCK_SIZE;
+        private int blockRestartInterval = DEFAULT_BLOCK_RESTART_INTERVAL;
+        private Compression compression = Compression.NONE;
+        private long blockCacheSize = DEFAULT_BLOCK_CACHE_SIZE;
+        private boolean offHeapBlockCache;
+        private boolean forceTables = true;
+        private int levelZeroCompactionTrigger = DEFAULT_LEVEL_ZERO_COMPACTION_TRIGGER;
+        private long levelBaseSize = DEFAULT_LEVEL_BASE_SIZE;
+        private long targetTableSize = DEFAULT_TARGET_TABLE_SIZE;
+        private CompactionStyle compactionStyle = CompactionStyle.LEVELED;
+        private int sizeTieredMinThreshold = DEFAULT_SIZE_TIERED_MIN_THRESHOLD;
+        private int sizeTieredMaxThreshold = DEFAULT_SIZE_TIERED_MAX_THRESHOLD;
+        private double sizeTieredBucketRatio = DEFAULT_SIZE_TIERED_BUCKET_RATIO;
+        private int maxTableCount = DEFAULT_MAX_TABLE_COUNT;
+        private int maxOverlappingTables = DEFAULT_MAX_OVERLAPPING_TABLES;
+        private double tombstoneCompactionRatio = DEFAULT_TOMBSTONE_COMPACTION_RATIO;
+        private int valueThreshold = DEFAULT_VALUE_THRESHOLD;
+        private long valueLogFileSize = DEFAULT_VALUE_LOG_FILE_SIZE;
+        private double valueLogGarbageRatio = DEFAULT_VALUE_LOG_GARBAGE_RATIO;
+
+        private Builder() {
+        }
+
+        public Builder fsyncPolicy(@NotNull final FsyncPolicy fsyncPolicy) {
+            this.fsyncPolicy = fsyncPolicy;
+            return this;
+        }
+
+        /**
+         * Sets period of background log force for {@link FsyncPolicy#PERIODIC} policy.
+         *
+         * @param fsyncIntervalMs - period in milliseconds
+         * @return this builder
+         */
+        public Builder fsyncIntervalMs(final long fsyncIntervalMs) {
+            if (fsyncIntervalMs <= 0) {
+                throw new IllegalArgumentException("Non-positive fsync interval: " + fsyncIntervalMs);
+            }
+            this.fsyncIntervalMs = fsyncIntervalMs;
+            return this;
+        }
+
+        /**
+         * Chooses {@link OffHeapTable} instead of heap {@link Table} for memtables.
+         * Direct memory is limited by -XX:MaxDirectMemorySize, which defaults to heap size.
+         *
+         * @param offHeapMemTable - whether to keep records in direct memory
+         * @return this builder
+         */
+        public Builder offHeapMemTable(final boolean offHeapMemTable) {
+            this.offHeapMemTable = offHeapMemTable;
+            return this;
+        }
+
+        /**
+         * Sets size of Bloom filter written with each table. 10 bits give about 1% false positives.
+         *
+         * @param bloomBitsPerKey - filter bits per key, 0 disables filters for new tables
+         * @return this builder
+         */
+        public Builder bloomBitsPerKey(final int bloomBitsPerKey) {
+            if (bloomBitsPerKey < 0) {
+                throw new IllegalArgumentException("Negative bits per key: " + bloomBitsPerKey);
+            }
+            this.bloomBitsPerKey = bloomBitsPerKey;
+            return this;
+        }
+
+        /**
+         * Sets target size of table blocks. Smaller blocks make point reads cheaper,
+         * larger ones shrink the in-memory index.
+         *
+         * @param blockSize - block size in bytes
+         * @return this builder
+         */
+        public Builder blockSize(final int blockSize) {
+            if (blockSize <= 0) {
+                throw new IllegalArgumentException("Non-positive block size: " + blockSize);
+            }
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        /**
+         * Sets how often keys are stored whole in table blocks, other keys omit the prefix shared
+         * with the previous one. Shorter intervals speed up seeks inside a block, longer ones save space.
+         *
+         * @param blockRestartInterval - number of records per whole key
+         * @return this builder
+         */
+        public Builder blockRestartInterval(final int blockRestartInterval) {
+            if (blockRestartInterval <= 0) {
+                throw new IllegalArgumentException("Non-positive restart interval: " + blockRestartInterval);
+            }
+            this.blockRestartInterval = blockRestartInterval;
+            return this;
+        }
+
+        /**
+         * Sets codec of blocks of new tables, existing tables are read with the codec they were written with.
+         *
+         * @param compression - block codec
+         * @return this builder
+         */
+        public Builder compression(@NotNull final Compression compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * Sets memory budget of the cache of table blocks.
+         *
+         * @param blockCacheSize - total size of cached blocks in bytes, 0 disables the cache
+         * @return this builder
+         */
+        public Builder blockCacheSize(final long blockCacheSize) {
+            if (blockCacheSize < 0) {
+                throw new IllegalArgumentException("Negative block cache size: " + blockCacheSize);
+            }
+            this.blockCacheSize = blockCacheSize;
+            return this;
+        }
+
+        /**
+         * Keeps cached blocks in direct memory instead of heap.
+         *
+         * @param offHeapBlockCache - whether to allocate cached blocks off heap
+         * @return this builder
+         */
+        public Builder offHeapBlockCache(final boolean offHeapBlockCache) {
+            this.offHeapBlockCache = offHeapBlockCache;
+            return this;
+        }
+
+        /**
+         * Controls whether flushed tables and meta file lines listing them are forced to disk
+         * before their log segments are deleted.
+         * Without it a machine crash shortly after a flush may lose the flushed records.
+         *
+         * @param forceTables - whether to force table files
+         * @return this builder
+         */
+        public Builder forceTables(final boolean forceTables) {
+            this.forceTables = forceTables;
+            return this;
+        }
+
+        /**
+         * Sets number of flushed tables that makes them merged into level 1.
+         *
+         * @param levelZeroCompactionTrigger - number of level 0 tables
+         * @return this builder
+         */
+        public Builder levelZeroCompactionTrigger(final int levelZeroCompactionTrigger) {
+            if (levelZeroCompactionTrigger <= 0) {
+                throw new IllegalArgumentException("Non-positive compaction trigger: " + levelZeroCompactionTrigger);
+            }
+            this.levelZeroCompactionTrigger = levelZeroCompactionTrigger;
+            return this;
+        }
+
+        /**
+         * Sets size limit of level 1, each next level is 10 times larger.
+         *
+         * @param levelBaseSize - size of level 1 in bytes
+         * @return this builder
+         */
+        public Builder levelBaseSize(final long levelBaseSize) {
+            if (levelBaseSize <= 0) {
+                throw new IllegalArgumentException("Non-positive level size: " + levelBaseSize);
+            }
+            this.levelBaseSize = levelBaseSize;
+            return this;
+        }
+
+        /**
+         * Sets size at which compaction starts a new output table.
+         *
+         * @param targetTableSize - table size in bytes
+         * @return this builder
+         */
+        public Builder targetTableSize(final long targetTableSize) {
+            if (targetTableSize <= 0) {
+                throw new IllegalArgumentException("Non-positive table size: " + targetTableSize);
+            }
+            this.targetTableSize = targetTableSize;
+            return this;
+        }
+
+        public Builder compactionStyle(@NotNull final CompactionStyle compactionStyle) {
+            this.compactionStyle = compactionStyle;
+            return this;
+        }
+
+        /**
+         * Sets bounds of the number of similarly sized tables merged by {@link CompactionStyle#SIZE_TIERED}.
+         *
+         * @param min - number of tables that triggers compaction
+         * @param max - maximum number of tables merged at once
+         * @return this builder
+         */
+        public Builder sizeTieredThresholds(final int min, final int max) {
+            if (min < 2 || max < min) {
+                throw new IllegalArgumentException("Invalid size-tiered thresholds: " + min + ", " + max);
+            }
+            this.sizeTieredMinThreshold = min;
+            this.sizeTieredMaxThreshold = max;
+            return this;
+        }
+
+        /**
+         * Sets how much sizes of tables may differ to be merged by {@link CompactionStyle#SIZE_TIERED}.
+         *
+         * @param sizeTieredBucketRatio - largest allowed ratio of a table size to average size of the run
+         * @return this builder
+         */
+        public Builder sizeTieredBucketRatio(final double sizeTieredBucketRatio) {
+            if (!(sizeTieredBucketRatio >= 1)) {
+                throw new IllegalArgumentException("Bucket ratio below 1: " + sizeTieredBucketRatio);
+            }
+            this.sizeTieredBucketRatio = sizeTieredBucketRatio;
+            return this;
+        }
+
+        /**
+         * Sets number of tables over which {@link CompactionStyle#SIZE_TIERED} merges the smallest adjacent tables
+         * even if their sizes differ. Leveled compaction keeps table count bounded by level sizes.
+         *
+         * @param maxTableCount - number of tables
+         * @return this builder
+         */
+        public Builder maxTableCount(final int maxTableCount) {
+            if (maxTableCount < 2) {
+                throw new IllegalArgumentException("Table count limit below 2: " + maxTableCount);
+            }
+            this.maxTableCount = maxTableCount;
+            return this;
+        }
+
+        /**
+         * Sets number of tables with intersecting key ranges over which {@link CompactionStyle#SIZE_TIERED}
+         * merges them, as every read of a key may have to look into each of them.
+         *
+         * @param maxOverlappingTables - number of tables holding a common key range
+         * @return this builder
+         */
+        public Builder maxOverlappingTables(final int maxOverlappingTables) {
+            if (maxOverlappingTables < 2) {
+                throw new IllegalArgumentException("Overlapping tables limit below 2: " + maxOverlappingTables);
+            }
+            this.maxOverlappingTables = maxOverlappingTables;
+            return this;
+        }
+
+        /**
+         * Sets share of tombstones in a table that makes it compacted together with older records it shadows.
+         *
+         * @param tombstoneCompactionRatio - share of tombstones among records of a table, above 1 disables
+         * @return this builder
+         */
+        public Builder tombstoneCompactionRatio(final double tombstoneCompactionRatio) {
+            if (!(tombstoneCompactionRatio > 0)) {
+                throw new IllegalArgumentException("Non-positive tombstone ratio: " + tombstoneCompactionRatio);
+            }
+            this.tombstoneCompactionRatio = tombstoneCompactionRatio;
+            return this;
+        }
+
+        /**
+         * Sets size of values moved from tables to value log when tables are written,
+         * so compaction copies only pointers to them.
+         *
+         * @param valueThreshold - smallest size of a moved value in bytes, 0 (default) keeps all values in tables
+         * @return this builder
+         */
+        public Builder valueThreshold(final int valueThreshold) {
+            if (valueThreshold < 0) {
+                throw new IllegalArgumentException("Negative value threshold: " + valueThreshold);
+            }
+            this.valueThreshold = valueThreshold;
+            return this;
+        }
+
+        /**
+         * Sets size of value log files, garbage collection rewrites and deletes whole files.
+         *
+         * @param valueLogFileSize - size over which a new file is started
+         * @return this builder
+         */
+        public Builder valueLogFileSize(final long valueLogFileSize) {
+            if (valueLogFileSize <= 0) {
+                throw new IllegalArgumentException("Non-positive value log file size: " + valueLogFileSize);
+            }
+            this.valueLogFileSize = valueLogFileSize;
+            return this;
+        }
+
+        /**
+         * Sets share of overwritten and removed values in a value log file that makes it collected.
+         *
+         * @param valueLogGarbageRatio - share of file bytes, 0 collects files with any garbage
+         * @return this builder
+         */
+        public Builder valueLogGarbageRatio(final double valueLogGarbageRatio) {
+            if (!(valueLogGarbageRatio >= 0 && valueLogGarbageRatio <= 1)) {
+                throw new IllegalArgumentException("Invalid garbage ratio: " + valueLogGarbageRatio);
+            }
+            this.valueLogGarbageRatio = valueLogGarbageRatio;
+            return this;
+        }
+
+        public Config build() {
+            return new Config(this);
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package ru.mail.polis.s3ponia;
 
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
@@ -7,59 +11,139 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
-public class DiskManager {
+public class DiskManager implements Closeable {
+    private static final Logger logger = Logger.getLogger(DiskManager.class.getName());
     static final String META_EXTENSION = ".mdb";
     static final String META_PREFIX = "fzxyGZ9LDM";
     private final Path metaFile;
     private static final String TABLE_EXTENSION = ".db";
     private static final char MAGICK_NUMBER = 0xabc3;
-    private List<String> fileNames;
-    private int generation;
-
-    private void saveTo(final Table dao, final Path file) throws IOException {
-        Files.createFile(file);
-        try (FileChannel writer = FileChannel.open(file, StandardOpenOption.WRITE)) {
-            var shifts = new int[dao.size()];
-            shifts[0] = 0;
-            var index = 0;
+    private static final char SEPARATOR = '\t';
+    private final int bitsPerKey;
+    private final int blockSize;
+    private final int restartInterval;
+    private final Compression compression;
+    private final int valueThreshold;
+    private final ValueLog valueLog;
+    private final long targetTableSize;
+    private final BlockCache blockCache;
+    private final boolean forceTables;
+    private final CompactionStats stats = new CompactionStats();
+    /* Output buffers of table writers, reused across flushes */
+    private final Queue<ByteBuffer> writeBuffers = new ConcurrentLinkedQueue<>();
+    /* Registered tables, guarded by this */
+    private TableSet tables;
+    private int lastFileNumber;
+
+    /**
+     * Meta file line: path, level and generation separated by tabs.
+     * Lines written before levels were introduced hold only path of a level 0 table.
+     */
+    private static final class Entry {
+        private final Path path;
+        private final int level;
+        private final int generation;
+
+        Entry(@NotNull final Path path, final int level, final int generation) {
+            this.path = path;
+            this.level = level;
+            this.generation = generation;
+        }
+
+        static Entry parse(@NotNull final String line) {
+            final var fields = line.split(String.valueOf(SEPARATOR));
+            final var path = Paths.get(fields[0]);
+            if (fields.length == 1) {
+                return new Entry(path, 0, fileNumber(path) - 1);
+            }
+            return new Entry(path, Integer.parseInt(fields[1]), Integer.parseInt(fields[2]));
+        }
+
+        static String toLine(@NotNull final DiskTable table) {
+            return table.file.toString() + SEPARATOR + table.level + SEPARATOR + table.generation;
+        }
+    }
+
+    private static int fileNumber(@NotNull final Path path) {
+        final var fileName = path.getFileName().toString();
+        return Integer.parseInt(fileName.substring(0, fileName.length() - TABLE_EXTENSION.length()));
+    }
+
+    private ByteBuffer takeBuffer() {
+        final var buffer = writeBuffers.poll();
+        return buffer == null ? ByteBuffer.allocateDirect(DiskTableWriter.BUFFER_SIZE) : buffer;
+    }
+
+    private long finish(@NotNull final DiskTableWriter writer) throws IOException {
+        final var bytes = writer.finish(forceTables);
+        stats.blocksWritten(writer.getRawBlockBytes(), writer.getStoredBlockBytes());
+        return bytes;
+    }
+
+    /**
+     * Moves value over the threshold to value log.
+     *
+     * @return pointer to the value or the value itself if it stays in the table
+     */
+    private Table.Value separate(@NotNull final ByteBuffer key, @NotNull final Table.Value value)
+            throws IOException {
+        if (valueThreshold == 0 || value.isDead() || value.isPointer()
+                || value.getValue().remaining() < valueThreshold) {
+            return value;
+        }
+        return Table.Value.pointer(valueLog.append(key, value.getValue()),
+                value.getDeadFlagSequence(), value.getGeneration());
+    }
+
+    private void saveTo(final MemTable dao, final Path file) throws IOException {
+        final var start = System.nanoTime();
+        final var buffer = takeBuffer();
+        long bytes = 0;
+        final long records;
+        try (var writer = new DiskTableWriter(file, buffer, blockSize, bitsPerKey, dao.size(),
+                restartInterval, compression)) {
             final var iterator = dao.iterator();
             while (iterator.hasNext()) {
                 final var cell = iterator.next();
-                var nextShift = shifts[index];
-                final var key = cell.getKey();
                 final var value = cell.getValue();
-
-                nextShift += key.remaining() + value.getValue().remaining() + Long.BYTES /* Meta size */
-                        + Integer.BYTES /* Shift size */;
-
-                writer.write(ByteBuffer.allocate(Long.BYTES).putLong(value.getDeadFlagTimeStamp()).flip());
-                writer.write(ByteBuffer.allocate(Integer.BYTES).putInt(key.remaining()).flip());
-                writer.write(key);
-                writer.write(value.getValue());
-
-                if (index < dao.size() - 1) {
-                    shifts[++index] = nextShift;
+                final var stored = separate(cell.getKey(), value);
+                if (stored != value) {
+                    bytes += value.getValue().remaining();
                 }
+                writer.add(cell.getKey(), stored);
             }
-
-            final var buffer = ByteBuffer.allocate(shifts.length * Integer.BYTES);
-            buffer.asIntBuffer().put(shifts).flip();
-            writer.write(buffer);
-            writer.write(ByteBuffer.allocate(Integer.BYTES).putInt(dao.size()).flip());
+            // Values must be durable before the table pointing to them
+            if (forceTables) {
+                valueLog.force();
+            }
+            bytes += finish(writer);
+            records = writer.getRecordCount();
+        } finally {
+            writeBuffers.offer(buffer);
         }
+        stats.flushed(bytes);
+        final var millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        logger.info(String.format("Flushed %d records, %d bytes to %s in %d ms (%.1f MB/s)",
+                records, bytes, file.getFileName(), millis, bytes * 1000.0 / millis / (1024 * 1024)));
     }
 
     private void setSeed() {
-        if (fileNames.size() <= 1) {
-            return;
+        for (final var table : tables.getTables()) {
+            lastFileNumber = Math.max(lastFileNumber, fileNumber(table.file));
         }
-        final var fileName = Paths.get(fileNames.get(fileNames.size() - 1)).getFileName().toString();
-        final var fileGen = fileName.substring(0, fileName.length() - 3);
-        generation = Integer.parseInt(fileGen);
     }
 
     private char getMagickNumber() {
@@ -67,11 +151,27 @@ public class DiskManager {
     }
 
     private String getName() {
-        ++generation;
-        return Integer.toString(generation);
+        ++lastFileNumber;
+        return Integer.toString(lastFileNumber);
     }
 
-    DiskManager(final Path file) throws IOException {
+    private synchronized Path reserveFile() {
+        var path = Paths.get(metaFile.getParent().toString(), getName() + TABLE_EXTENSION);
+        while (Files.exists(path)) {
+            path = Paths.get(metaFile.getParent().toString(), getName() + TABLE_EXTENSION);
+        }
+        return path;
+    }
+
+    DiskManager(final Path file, final Config config) throws IOException {
+        bitsPerKey = config.getBloomBitsPerKey();
+        blockSize = config.getBlockSize();
+        restartInterval = config.getBlockRestartInterval();
+        compression = config.getCompression();
+        valueThreshold = config.getValueThreshold();
+        targetTableSize = config.getTargetTableSize();
+        forceTables = config.isForceTables();
+        blockCache = BlockCache.of(config.getBlockCacheSize(), config.isOffHeapBlockCache());
         if (Files.exists(file)) {
             boolean isMetaFile = true;
             try (var reader = Files.newBufferedReader(file)) {
@@ -86,6 +186,7 @@ public class DiskManager {
             }
         }
         metaFile = file;
+        valueLog = ValueLog.open(file.getParent(), config.getValueLogFileSize());
         if (!Files.exists(metaFile)) {
             Files.createFile(metaFile);
             try (var writer = Files.newBufferedWriter(metaFile)) {
@@ -94,45 +195,268 @@ public class DiskManager {
             }
         }
 
-        fileNames = Files.readAllLines(metaFile);
+        final var opened = new ArrayList<DiskTable>();
+        try {
+            for (final var entry : Files.readAllLines(metaFile).stream()
+                    .skip(1)
+                    .filter(line -> !line.isEmpty())
+                    .map(Entry::parse)
+                    .collect(Collectors.toList())) {
+                // A table which can not be read fails the open instead of being dropped by the next compaction
+                opened.add(DiskTable.of(entry.path, entry.level, entry.generation, blockCache));
+            }
+        } catch (IOException e) {
+            valueLog.close();
+            throw e;
+        }
+        opened.sort(Comparator.comparingInt(table -> table.generation));
+        tables = new TableSet(opened, valueLog.getFiles());
 
         setSeed();
 
     }
 
-    List<DiskTable> diskTables() {
-        return fileNames.stream()
-                .skip(1)
-                .map(Paths::get)
-                .map(DiskTable::of)
-                .collect(Collectors.toList());
+    /**
+     * Retains current tables, the caller must release them.
+     */
+    synchronized TableSet acquire() {
+        tables.retain();
+        return tables;
+    }
+
+    /**
+     * Makes the list current, tables left out of it are deleted once no reader holds them.
+     * Must be called under lock of this.
+     */
+    private void install(@NotNull final List<DiskTable> list) {
+        list.sort(Comparator.comparingInt(table -> table.generation));
+        final var previous = tables;
+        tables = new TableSet(list, valueLog.getFiles());
+        previous.release();
+    }
+
+    ValueLog getValueLog() {
+        return valueLog;
+    }
+
+    /**
+     * Drops value log file which values are no longer referenced by current tables.
+     * The file is deleted once readers which may still follow older pointers release their tables.
+     */
+    synchronized void dropValueFile(@NotNull final ValueFile file) {
+        valueLog.remove(file);
+        install(new ArrayList<>(tables.getTables()));
+        logger.info(String.format("Dropped value log file %s", file.file.getFileName()));
+    }
+
+    /**
+     * Writes table to a new file and registers it in meta file.
+     * Safe to call concurrently with {@link #acquire()}: the file is listed only after it is fully written.
+     */
+    void save(final MemTable dao) throws IOException {
+        final var filePath = reserveFile();
+        saveTo(dao, filePath);
+        final var table = DiskTable.of(filePath, 0, dao.getGeneration(), blockCache);
+        synchronized (this) {
+            appendMeta(Entry.toLine(table) + "\n");
+            final var list = new ArrayList<>(tables.getTables());
+            list.add(table);
+            install(list);
+        }
     }
 
-    void clear() throws IOException {
-        Files.delete(metaFile);
-        Files.createFile(metaFile);
-        try (var writer = Files.newBufferedWriter(metaFile)) {
+    /**
+     * Appends line to meta file. Log segments of a saved table are deleted once it is listed,
+     * so the line is forced together with table files.
+     */
+    private void appendMeta(final String line) throws IOException {
+        final var buffer = Charset.defaultCharset().encode(line);
+        try (var channel = FileChannel.open(metaFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (forceTables) {
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Replaces meta file with one listing given tables.
+     * The new file is renamed over the old one, so a crash leaves either of them intact.
+     */
+    private void rewriteMeta(@NotNull final List<DiskTable> list) throws IOException {
+        final var temp = metaFile.resolveSibling(metaFile.getFileName() + ".tmp");
+        try (var writer = Files.newBufferedWriter(temp)) {
             writer.write(getMagickNumber());
             writer.write('\n');
+            for (final var table : list) {
+                writer.write(Entry.toLine(table) + "\n");
+            }
+        }
+        try (var channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
         }
-        generation = 0;
-        fileNames = Files.readAllLines(metaFile);
+        Files.move(temp, metaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
-    void save(final Table dao) throws IOException {
-        try (var writer = Files.newBufferedWriter(this.metaFile, Charset.defaultCharset(), StandardOpenOption.APPEND)) {
-            var filePath = Paths.get(metaFile.getParent().toString(), getName() + TABLE_EXTENSION);
-            while (Files.exists(filePath)) {
-                filePath = Paths.get(metaFile.getParent().toString(), getName() + TABLE_EXTENSION);
+    /**
+     * Merges input tables into new tables of the target level and swaps them in.
+     * Readers see either input or output tables, never both or none.
+     * Input files are deleted once readers release them.
+     * Tombstones are dropped when no other table holds records older than the inputs.
+     */
+    void compact(@NotNull final Compaction compaction) throws IOException {
+        final var start = System.nanoTime();
+        final var inputs = compaction.getInputs();
+        final var level = compaction.getLevel();
+        final var generation = compaction.getGeneration();
+        if (compaction.isTrivialMove()) {
+            final var input = inputs.get(0).file;
+            replace(inputs, List.of(input), level, generation);
+            logger.info(String.format("Moved %s to level %d", input.getFileName(), level));
+            return;
+        }
+        final var inputFiles = new HashSet<Path>();
+        inputs.forEach(input -> inputFiles.add(input.file));
+        final var oldest = compaction.getOldestGeneration();
+        final boolean bottom;
+        synchronized (this) {
+            bottom = tables.getTables().stream()
+                    .allMatch(table -> inputFiles.contains(table.file) || table.generation >= oldest);
+        }
+        final var iterators = inputs.stream().map(DiskTable::iterator).collect(Collectors.toList());
+        Iterator<Table.ICell> cells = MergeIterator.of(iterators);
+        if (bottom) {
+            cells = Iterators.filter(cells, cell -> !cell.getValue().isDead());
+        }
+
+        final var expectedKeys = expectedKeys(compaction);
+        final var outputs = new ArrayList<Path>();
+        final var buffer = takeBuffer();
+        long bytes = 0;
+        DiskTableWriter writer = null;
+        try {
+            while (cells.hasNext()) {
+                if (writer == null) {
+                    final var path = reserveFile();
+                    outputs.add(path);
+                    writer = new DiskTableWriter(path, buffer, blockSize, bitsPerKey, expectedKeys,
+                            restartInterval, compression);
+                }
+                final var cell = cells.next();
+                // Large values of tables written before value log was enabled are moved there
+                final var value = cell.getValue();
+                final var stored = separate(cell.getKey(), value);
+                if (stored != value) {
+                    bytes += value.getValue().remaining();
+                }
+                writer.add(cell.getKey(), stored);
+                if (compaction.isSplit() && writer.sizeInBytes() >= targetTableSize) {
+                    bytes += finish(writer);
+                    writer.close();
+                    writer = null;
+                }
+            }
+            if (writer != null) {
+                bytes += finish(writer);
+            }
+            if (forceTables) {
+                valueLog.force();
+            }
+        } catch (IOException | RuntimeException e) {
+            for (final var output : outputs) {
+                Files.deleteIfExists(output);
+            }
+            throw e;
+        } finally {
+            if (writer != null) {
+                writer.close();
             }
-            final var fileName = filePath.toString();
-            fileNames.add(fileName);
-            writer.write(fileName + "\n");
-            saveTo(dao, filePath);
+            writeBuffers.offer(buffer);
         }
+
+        replace(inputs, outputs, level, generation);
+        stats.compacted(bytes);
+        final var millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        logger.info(String.format("Compacted %d tables, %d bytes into %d tables, %d bytes at level %d in %d ms",
+                inputs.size(), inputs.stream().mapToLong(DiskTable::sizeInBytes).sum(),
+                outputs.size(), bytes, level, millis));
+    }
+
+    /**
+     * Number of keys an output table of the compaction is expected to hold, its filter is sized by it.
+     * Inputs may share keys, so the sum of their records bounds the output,
+     * a split output table holds about the records of a target size share of the inputs.
+     */
+    private long expectedKeys(@NotNull final Compaction compaction) {
+        long records = 0;
+        long bytes = 0;
+        for (final var input : compaction.getInputs()) {
+            records += input.getRecordCount();
+            bytes += input.sizeInBytes();
+        }
+        if (!compaction.isSplit() || bytes <= targetTableSize) {
+            return records;
+        }
+        return (long) Math.ceil((double) records * targetTableSize / bytes);
     }
 
-    int getGeneration() {
+    private void replace(@NotNull final List<DiskTable> inputs,
+                         @NotNull final List<Path> outputs,
+                         final int level,
+                         final int generation) throws IOException {
+        final var opened = new ArrayList<DiskTable>(outputs.size());
+        for (final var output : outputs) {
+            opened.add(DiskTable.of(output, level, generation, blockCache));
+        }
+        synchronized (this) {
+            final var list = new ArrayList<>(tables.getTables());
+            list.removeAll(inputs);
+            list.addAll(opened);
+            rewriteMeta(list);
+            // A moved table keeps its file
+            inputs.stream().filter(input -> !outputs.contains(input.file)).forEach(DiskTable::markObsolete);
+            install(list);
+        }
+    }
+
+    CompactionStats getStats() {
+        return stats;
+    }
+
+    BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Generation for the next memtable, newer than any stored table.
+     */
+    synchronized int getGeneration() {
+        var generation = 0;
+        for (final var table : tables.getTables()) {
+            generation = Math.max(generation, table.generation + 1);
+        }
         return generation;
     }
+
+    /**
+     * Largest sequence number stored in tables, writes continue after it.
+     */
+    synchronized long getMaxSequence() {
+        var sequence = 0L;
+        for (final var table : tables.getTables()) {
+            sequence = Math.max(sequence, table.getMaxSequence());
+        }
+        return sequence;
+    }
+
+    /**
+     * Releases current tables, files stay in place for the next start.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        valueLog.close();
+        tables.release();
+    }
 }
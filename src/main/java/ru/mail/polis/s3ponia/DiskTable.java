@@ -1,207 +1,208 @@
 package ru.mail.polis.s3ponia;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Iters;
 
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.Comparator;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-public class DiskTable {
+/**
+ * Read-only view of a table file. The file is memory-mapped once, format is recognized by its first bytes.
+ * Table is referenced by each {@link TableSet} including it, the file of a table replaced by compaction
+ * is deleted when the last of them is released.
+ */
+public abstract class DiskTable {
     private static final Logger logger = Logger.getLogger(DiskTable.class.getName());
-    private final int[] shifts;
-    private final int generation;
-    private final Path fileChannel;
-
-    private class DiskTableIterator implements Iterator<Table.ICell> {
-        private int elementIndex;
-
-        private LazyCell getLazyCell(final int index) {
-            if (index >= shifts.length - 1) {
-                throw new ArrayIndexOutOfBoundsException("Out of bound");
-            }
-            return readLazyCell(getElementShift(index), getElementSize(index));
-        }
+    final int generation;
+    final int level;
+    final Path file;
+    private final AtomicInteger references = new AtomicInteger();
+    private volatile boolean obsolete;
+
+    DiskTable(@NotNull final Path file, final int level, final int generation) {
+        this.file = file;
+        this.level = level;
+        this.generation = generation;
+    }
 
-        private int getElementIndex(@NotNull final ByteBuffer key) {
-            int left = 0;
-            int right = shifts.length - 2;
-            while (left <= right) {
-                final int mid = (left + right) / 2;
-                final ByteBuffer midKey = getLazyCell(mid).getKey();
-                final int compareResult = midKey.compareTo(key);
-
-                if (compareResult < 0) {
-                    left = mid + 1;
-                } else if (compareResult > 0) {
-                    right = mid - 1;
-                } else {
-                    return mid;
-                }
-            }
+    /**
+     * Checks Bloom filter of the table.
+     *
+     * @param hash - {@link BloomFilter#hash(ByteBuffer)} of the key
+     * @return false if the table definitely has no such key
+     */
+    public abstract boolean mightContain(long hash);
 
-            return left;
-        }
+    /**
+     * Searches the key without consulting Bloom filter.
+     */
+    @Nullable
+    abstract Table.Value find(@NotNull ByteBuffer key);
 
-        DiskTableIterator() {
-            elementIndex = 0;
-        }
+    /**
+     * Finds value or tombstone of the key.
+     *
+     * @param hash - {@link BloomFilter#hash(ByteBuffer)} of the key, computed once for all tables probed
+     * @return null if the table has no record for the key
+     */
+    @Nullable
+    public Table.Value get(@NotNull final ByteBuffer key, final long hash) {
+        return mightContain(hash) ? find(key) : null;
+    }
 
-        DiskTableIterator(@NotNull final ByteBuffer key) {
-            elementIndex = getElementIndex(key);
-        }
+    /**
+     * Smallest key of the table.
+     *
+     * @return null if the table is empty
+     */
+    @Nullable
+    abstract ByteBuffer firstKey();
 
-        @Override
-        public boolean hasNext() {
-            return elementIndex < shifts.length - 1;
-        }
+    /**
+     * Largest key of the table.
+     *
+     * @return null if the table is empty
+     */
+    @Nullable
+    abstract ByteBuffer lastKey();
 
-        @Override
-        public LazyCell next() {
-            final var result = getLazyCell(elementIndex);
-            ++elementIndex;
-            return result;
-        }
+    /**
+     * Checks whether key ranges of the tables intersect.
+     */
+    boolean overlaps(@Nullable final ByteBuffer first, @Nullable final ByteBuffer last) {
+        final var ownFirst = firstKey();
+        final var ownLast = lastKey();
+        return ownFirst != null && first != null && last != null
+                && ownFirst.compareTo(last) <= 0 && first.compareTo(ownLast) <= 0;
     }
 
-    private class LazyCell implements Table.ICell {
-        final long position;
-        final int size;
-        static final int CACHE_SIZE = 100;
-        ByteBuffer keyCache;
-        Table.Value valueCache;
-
-        public LazyCell(final long position, final int size) {
-            this.position = position;
-            this.size = size;
-        }
-
-        @Override
-        @NotNull
-        public ByteBuffer getKey() {
-            if (keyCache != null) {
-                return keyCache;
-            }
-            try (var channel = FileChannel.open(fileChannel, StandardOpenOption.READ)) {
-                final var buffer = ByteBuffer.allocate(Integer.BYTES);
-                channel.read(buffer, position + Long.BYTES);
-                final var keySize = buffer.flip().getInt();
-                final var key = ByteBuffer.allocate(keySize);
-                channel.read(key, position + Long.BYTES + Integer.BYTES);
-                if (keySize < CACHE_SIZE) {
-                    keyCache = key.flip();
-                    return keyCache;
-                }
-                return key.flip();
-            } catch (IOException e) {
-                logger.warning(e.toString());
-                return ByteBuffer.allocate(0);
-            }
-        }
+    /**
+     * Checks whether the table may hold keys from "from" key (inclusive) until "to" key (exclusive).
+     *
+     * @param to - key after the last one, null for no bound
+     */
+    boolean intersects(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        final var first = firstKey();
+        return first != null && (to == null || first.compareTo(to) < 0) && lastKey().compareTo(from) >= 0;
+    }
 
-        @Override
-        @NotNull
-        public Table.Value getValue() {
-            if (valueCache != null) {
-                return valueCache;
-            }
-            try (var channel = FileChannel.open(fileChannel, StandardOpenOption.READ)) {
-                final var valueSizeBuf = ByteBuffer.allocate(Long.BYTES);
-                channel.read(valueSizeBuf, position);
-                final var deadFlagTimeStamp = valueSizeBuf.flip().getLong();
-                final var buffer = ByteBuffer.allocate(Integer.BYTES);
-                channel.read(buffer, position + Long.BYTES);
-                final var keySize = buffer.flip().getInt();
-                final var valueBuf = ByteBuffer.allocate(size - Integer.BYTES - Long.BYTES - keySize);
-                channel.read(valueBuf, position + Long.BYTES + Integer.BYTES + keySize);
-
-                final var value = Table.Value.of(valueBuf.flip(), deadFlagTimeStamp, generation);
-                if (valueBuf.limit() < CACHE_SIZE) {
-                    valueCache = value;
-                }
-                return value;
-            } catch (IOException e) {
-                logger.warning(e.toString());
-                return Table.Value.of(ByteBuffer.allocate(0), -1);
-            }
-        }
+    /**
+     * Size of the table file.
+     */
+    abstract long sizeInBytes();
 
-        @Override
-        public int compareTo(@NotNull final Table.ICell o) {
-            return Comparator.comparing(Table.ICell::getKey).thenComparing(Table.ICell::getValue).compare(this, o);
-        }
+    /**
+     * Number of records including tombstones, 0 if the table format does not store it.
+     */
+    long getRecordCount() {
+        return 0;
     }
 
-    private int getElementSize(final int index) {
-        if (index == shifts.length - 1) {
-            return getShiftsArrayShift() - getElementShift(index);
-        } else {
-            return getElementShift(index + 1) - getElementShift(index);
-        }
+    /**
+     * Number of tombstones, 0 if the table format does not store it.
+     */
+    long getTombstoneCount() {
+        return 0;
     }
 
-    private int getShiftsArrayShift() {
-        return shifts[shifts.length - 1];
+    /**
+     * Largest sequence number of records, 0 if the table format does not store it.
+     */
+    long getMaxSequence() {
+        return 0;
     }
 
-    private int getElementShift(final int index) {
-        return shifts[index];
+    /**
+     * Share of tombstones among records, used to compact tables which mostly shadow older records.
+     */
+    double tombstoneRatio() {
+        final var records = getRecordCount();
+        return records == 0 ? 0 : (double) getTombstoneCount() / records;
     }
 
-    private LazyCell readLazyCell(final long position, final int size) {
-        return new LazyCell(position, size);
-    }
+    public abstract Iterator<Table.ICell> iterator();
+
+    public abstract Iterator<Table.ICell> iterator(@NotNull ByteBuffer from);
 
     /**
-     * DiskTable default constructor.
+     * Iterator over cells from "from" key (inclusive) until "to" key (exclusive) in ascending order.
+     * A table without keys in the range is not read at all, otherwise reading stops at the bound.
+     *
+     * @param to - key after the last one, null for no bound
      */
-    public DiskTable() {
-        shifts = null;
-        fileChannel = null;
-        generation = 0;
+    public Iterator<Table.ICell> iterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return intersects(from, to) ? range(from, to) : Iters.empty();
     }
 
-    DiskTable(final Path path) throws IOException {
-        fileChannel = path;
-        final var fileName = fileChannel.getFileName().toString();
-        generation = Integer.parseInt(fileName.substring(0, fileName.length() - 3)) - 1;
-        try (var channel = FileChannel.open(fileChannel, StandardOpenOption.READ)) {
-            final long size = channel.size();
-            final var buffSize = ByteBuffer.allocate(Integer.BYTES);
-            channel.read(buffSize, size - Integer.BYTES);
-            final var elementsQuantity = buffSize.flip().getInt();
-            final var arrayShift = (int) size - Integer.BYTES * (elementsQuantity + 1);
-            shifts = new int[elementsQuantity + 1];
-            final var buff = ByteBuffer.allocate(Integer.BYTES * shifts.length);
-            channel.read(buff, arrayShift);
-            buff.flip().asIntBuffer().get(shifts);
-            shifts[elementsQuantity] = arrayShift;
+    /**
+     * Iterator over cells of a range intersecting key range of the table.
+     */
+    abstract Iterator<Table.ICell> range(@NotNull ByteBuffer from, @Nullable ByteBuffer to);
+
+    /**
+     * Iterator over cells with keys less than "to" key in descending order.
+     *
+     * @param to - key after the first one, null to start at the largest key
+     */
+    public abstract Iterator<Table.ICell> descendingIterator(@Nullable ByteBuffer to);
+
+    /**
+     * Opens table file.
+     *
+     * @param path       - table file
+     * @param level      - level of the table in the tree, 0 for flushed memtables
+     * @param generation - generation of records, higher one wins when keys are equal
+     * @param cache      - cache for table blocks
+     * @throws IOException if the file can not be read or is not a table
+     */
+    static DiskTable of(final Path path,
+                        final int level,
+                        final int generation,
+                        @NotNull final BlockCache cache) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (BlockDiskTable.hasHeader(channel)) {
+                return BlockDiskTable.open(path, level, generation, channel, cache);
+            }
+            // Mapping outlives the channel and is released by GC
+            return new LegacyDiskTable(path, level, generation,
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IndexOutOfBoundsException | IllegalArgumentException | BufferUnderflowException
+                 | NegativeArraySizeException e) {
+            throw new IOException(path + " is malformed", e);
         }
     }
 
-    public Iterator<Table.ICell> iterator() {
-        return new DiskTableIterator();
+    public void erase() throws IOException {
+        Files.deleteIfExists(file);
     }
 
-    public Iterator<Table.ICell> iterator(@NotNull final ByteBuffer from) {
-        return new DiskTableIterator(from);
+    void retain() {
+        references.incrementAndGet();
     }
 
-    static DiskTable of(final Path path) {
-        try {
-            return new DiskTable(path);
-        } catch (IOException e) {
-            logger.warning(e.toString());
-            return new DiskTable();
+    void release() {
+        if (references.decrementAndGet() == 0 && obsolete) {
+            try {
+                erase();
+            } catch (IOException e) {
+                logger.warning(file + ": " + e);
+            }
         }
     }
 
-    public void erase() throws IOException {
-        Files.delete(fileChannel);
+    /**
+     * Marks table replaced by compaction. Must be called while the table is still referenced.
+     */
+    void markObsolete() {
+        obsolete = true;
     }
 }
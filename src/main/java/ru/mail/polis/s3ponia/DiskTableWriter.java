@@ -0,0 +1,332 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes sorted records to a new table in {@link BlockDiskTable} format.
+ * A block is cut when the next record does not fit into block size, a record larger than a block takes
+ * a block of its own.
+ * Keys are stored without the prefix shared with the previous key of the block, except for every
+ * restart interval-th record, which keeps its key whole and is listed at the end of the block.
+ * All sections are streamed through one output buffer, which is written to the file only when full.
+ * Compressed blocks are first collected whole in a separate buffer.
+ */
+final class DiskTableWriter implements Closeable {
+    /* Size of output buffers, large enough to write at sequential disk speed */
+    static final int BUFFER_SIZE = 1024 * 1024;
+    private final FileChannel channel;
+    private final ByteBuffer out;
+    private final int blockSize;
+    private final int restartInterval;
+    private final Compression compression;
+    /* Compressor and buffers of compressed tables, null if blocks are written as they are */
+    private final Deflater deflater;
+    private ByteBuffer block;
+    private ByteBuffer compressed;
+    /* Filter sized by expected number of keys, null if tables are written without filters */
+    private final BloomFilter filter;
+    private ByteBuffer index = ByteBuffer.allocate(1024);
+    /* First and last keys of the current block */
+    private ByteBuffer firstKey;
+    private ByteBuffer lastKey;
+    /* Last key of the table, stored after the filter */
+    private ByteBuffer largestKey;
+    /* Offsets of records with whole keys in the current block */
+    private int[] restarts = new int[16];
+    private int restartCount;
+    private int blockRecords;
+    private int blockBytes;
+    private long offset = BlockDiskTable.HEADER_SIZE;
+    private long written;
+    private int blockCount;
+    private long recordCount;
+    private long tombstoneCount;
+    private long maxSequence;
+    private long rawBlockBytes;
+    private long storedBlockBytes;
+
+    /**
+     * Creates table file and writes its header.
+     *
+     * @param file       - new table file
+     * @param out        - cleared output buffer, owned by the writer until it is closed
+     * @param blockSize  - target size of a block
+     * @param bitsPerKey - Bloom filter bits per key, 0 for no filter
+     * @param expectedKeys    - number of keys the filter is sized for
+     * @param restartInterval - number of records between whole keys in a block
+     * @param compression     - codec of blocks
+     */
+    DiskTableWriter(@NotNull final Path file,
+                    @NotNull final ByteBuffer out,
+                    final int blockSize,
+                    final int bitsPerKey,
+                    final long expectedKeys,
+                    final int restartInterval,
+                    @NotNull final Compression compression) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.out = out;
+        this.blockSize = blockSize;
+        this.filter = bitsPerKey > 0
+                ? BloomFilter.create((int) Math.min(Integer.MAX_VALUE, expectedKeys), bitsPerKey)
+                : null;
+        this.restartInterval = restartInterval;
+        this.compression = compression;
+        if (compression == Compression.DEFLATE) {
+            this.deflater = new Deflater(Deflater.BEST_SPEED);
+            this.block = ByteBuffer.allocate(blockSize);
+            this.compressed = ByteBuffer.allocate(blockSize);
+        } else {
+            this.deflater = null;
+        }
+        out.putLong(BlockDiskTable.FORMAT_MAGIC).putInt(BlockDiskTable.VERSION);
+    }
+
+    private void drain() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            written += channel.write(out);
+        }
+        out.clear();
+    }
+
+    private void reserve(final int bytes) throws IOException {
+        if (out.remaining() < bytes) {
+            drain();
+        }
+    }
+
+    private void put(@NotNull final ByteBuffer source) throws IOException {
+        final var src = source.duplicate();
+        if (src.remaining() >= out.capacity()) {
+            // Large values go to the file directly instead of being copied in chunks
+            drain();
+            while (src.hasRemaining()) {
+                written += channel.write(src);
+            }
+            return;
+        }
+        reserve(src.remaining());
+        out.put(src);
+    }
+
+    private static ByteBuffer grow(@NotNull final ByteBuffer buffer, final int bytes) {
+        final var grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        return grown.put(buffer.flip());
+    }
+
+    /**
+     * Buffer to write the next bytes of the current block to.
+     */
+    private ByteBuffer blockOut(final int bytes) throws IOException {
+        if (deflater == null) {
+            reserve(bytes);
+            return out;
+        }
+        if (block.remaining() < bytes) {
+            block = grow(block, bytes);
+        }
+        return block;
+    }
+
+    private void putBlock(@NotNull final ByteBuffer source) throws IOException {
+        if (deflater == null) {
+            put(source);
+        } else {
+            blockOut(source.remaining()).put(source.duplicate());
+        }
+    }
+
+    /**
+     * Writes collected block prefixed by its size, compressed unless that does not make it smaller.
+     *
+     * @return number of bytes written
+     */
+    private int writeCompressed() throws IOException {
+        block.flip();
+        final var rawSize = block.remaining();
+        deflater.reset();
+        deflater.setInput(block);
+        deflater.finish();
+        compressed.clear();
+        while (!deflater.finished()) {
+            if (!compressed.hasRemaining()) {
+                compressed = grow(compressed, blockSize);
+            }
+            deflater.deflate(compressed);
+        }
+        compressed.flip();
+        final var stored = compressed.remaining() < rawSize ? compressed : block.rewind();
+        // Stored buffer may be the block, which is cleared below
+        final var storedSize = stored.remaining();
+        reserve(Integer.BYTES);
+        out.putInt(rawSize);
+        put(stored);
+        block.clear();
+        return Integer.BYTES + storedSize;
+    }
+
+    /**
+     * Appends record, keys must come in ascending order.
+     */
+    void add(@NotNull final ByteBuffer key, @NotNull final Table.Value value) throws IOException {
+        final var valueBuffer = value.getValue();
+        final var trailerSize = Integer.BYTES * (restartCount + 2);
+        var shared = blockRecords % restartInterval == 0 ? 0 : sharedPrefix(lastKey, key);
+        if (blockBytes > 0
+                && blockBytes + BlockDiskTable.RECORD_HEADER + key.remaining() - shared + valueBuffer.remaining()
+                + trailerSize > blockSize) {
+            finishBlock();
+            shared = 0;
+        }
+        if (blockBytes == 0) {
+            firstKey = key;
+        }
+        if (blockRecords % restartInterval == 0) {
+            if (restartCount == restarts.length) {
+                restarts = Arrays.copyOf(restarts, restarts.length * 2);
+            }
+            restarts[restartCount++] = blockBytes;
+        }
+        final var suffixSize = key.remaining() - shared;
+        final var recordSize = BlockDiskTable.RECORD_HEADER + suffixSize + valueBuffer.remaining();
+        if (filter != null) {
+            filter.add(BloomFilter.hash(key));
+        }
+        blockOut(BlockDiskTable.RECORD_HEADER)
+                .putLong(value.getDeadFlagSequence())
+                .putInt(shared)
+                .putInt(suffixSize)
+                .putInt(valueBuffer.remaining());
+        putBlock(key.duplicate().position(key.position() + shared));
+        putBlock(valueBuffer);
+        blockBytes += recordSize;
+        lastKey = key;
+        largestKey = key;
+        ++blockRecords;
+        ++recordCount;
+        if (value.isDead()) {
+            ++tombstoneCount;
+        }
+        maxSequence = Math.max(maxSequence, value.getSequence());
+        if (blockBytes + Integer.BYTES * (restartCount + 1) >= blockSize) {
+            finishBlock();
+        }
+    }
+
+    private static int sharedPrefix(@NotNull final ByteBuffer previous, @NotNull final ByteBuffer key) {
+        final var mismatch = previous.mismatch(key);
+        return mismatch < 0 ? key.remaining() : mismatch;
+    }
+
+    private void finishBlock() throws IOException {
+        for (int i = 0; i < restartCount; i++) {
+            blockOut(Integer.BYTES).putInt(restarts[i]);
+        }
+        blockOut(Integer.BYTES).putInt(restartCount);
+        blockBytes += Integer.BYTES * (restartCount + 1);
+        final var storedBytes = deflater == null ? blockBytes : writeCompressed();
+        rawBlockBytes += blockBytes;
+        storedBlockBytes += storedBytes;
+        restartCount = 0;
+        blockRecords = 0;
+        final var entrySize = Long.BYTES + Integer.BYTES + firstKey.remaining();
+        if (index.remaining() < entrySize) {
+            index = grow(index, entrySize);
+        }
+        index.putLong(offset).putInt(firstKey.remaining()).put(firstKey.duplicate());
+        offset += storedBytes;
+        blockBytes = 0;
+        ++blockCount;
+        firstKey = null;
+        lastKey = null;
+    }
+
+    /**
+     * Writes the last block, index, filter and footer.
+     *
+     * @param force - whether to force the file to disk
+     * @return size of the table file
+     */
+    long finish(final boolean force) throws IOException {
+        if (blockBytes > 0) {
+            finishBlock();
+        }
+        final var indexOffset = offset;
+        final var filterOffset = indexOffset + index.position();
+        var keysOffset = filterOffset;
+        put(index.flip());
+        var hashCount = 0;
+        if (filter != null) {
+            final var bits = filter.toByteBuffer();
+            put(bits);
+            keysOffset += bits.remaining();
+            hashCount = filter.getHashCount();
+        }
+        final var lastKeySize = largestKey == null ? 0 : largestKey.remaining();
+        reserve(Integer.BYTES);
+        out.putInt(lastKeySize);
+        if (largestKey != null) {
+            put(largestKey);
+        }
+        reserve(BlockDiskTable.FOOTER_SIZE);
+        out.putLong(indexOffset)
+                .putLong(filterOffset)
+                .putLong(recordCount)
+                .putLong(tombstoneCount)
+                .putLong(maxSequence)
+                .putLong(keysOffset)
+                .putInt(hashCount)
+                .putInt(blockCount)
+                .putInt(compression.ordinal())
+                .putInt(BlockDiskTable.VERSION)
+                .putLong(BlockDiskTable.FORMAT_MAGIC);
+        drain();
+        if (force) {
+            channel.force(false);
+        }
+        return written;
+    }
+
+    long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Size of written blocks before compression.
+     */
+    long getRawBlockBytes() {
+        return rawBlockBytes;
+    }
+
+    /**
+     * Size of written blocks as stored in the file.
+     */
+    long getStoredBlockBytes() {
+        return storedBlockBytes;
+    }
+
+    /**
+     * Size of the table written so far, including buffered bytes.
+     */
+    long sizeInBytes() {
+        return written + out.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.clear();
+        if (deflater != null) {
+            deflater.end();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,19 @@
+package ru.mail.polis.s3ponia;
+
+/**
+ * Defines when appended write-ahead log records are forced to the storage device.
+ */
+public enum FsyncPolicy {
+    /**
+     * Every write waits for its record to be forced. Concurrent writers share one force call.
+     */
+    PER_WRITE,
+    /**
+     * The log is forced in background every {@link Config#getFsyncIntervalMs()} milliseconds.
+     */
+    PERIODIC,
+    /**
+     * The log is never forced, records become durable only when memtable is flushed.
+     */
+    ON_FLUSH
+}
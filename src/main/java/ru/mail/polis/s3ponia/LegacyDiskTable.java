@@ -0,0 +1,257 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Table in the original format: records, int offsets of records, records count,
+ * optionally followed by Bloom filter trailer. Cells are slices of the file mapping.
+ */
+final class LegacyDiskTable extends DiskTable {
+    /* Marks Bloom filter trailer: bits, hash count(int), bits size in bytes(int), magic(long) */
+    private static final long BLOOM_MAGIC = 0x426C6F6F6D763101L;
+    private static final int BLOOM_TRAILER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES;
+    private final int[] shifts;
+    private final ByteBuffer mapped;
+    private final BloomFilter filter;
+
+    private class DiskTableIterator implements Iterator<Table.ICell> {
+        private int elementIndex;
+        /* Index of the first record past the range */
+        private final int endIndex;
+
+        private LazyCell getLazyCell(final int index) {
+            if (index >= shifts.length - 1) {
+                throw new ArrayIndexOutOfBoundsException("Out of bound");
+            }
+            return readLazyCell(getElementShift(index), getElementSize(index));
+        }
+
+        DiskTableIterator() {
+            elementIndex = 0;
+            endIndex = recordsCount();
+        }
+
+        DiskTableIterator(@NotNull final ByteBuffer key) {
+            elementIndex = getElementIndex(key);
+            endIndex = recordsCount();
+        }
+
+        DiskTableIterator(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) {
+            elementIndex = getElementIndex(from);
+            endIndex = getElementIndex(to);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return elementIndex < endIndex;
+        }
+
+        @Override
+        public LazyCell next() {
+            final var result = getLazyCell(elementIndex);
+            ++elementIndex;
+            return result;
+        }
+    }
+
+    private class LazyCell implements Table.ICell {
+        final int position;
+        final int size;
+
+        public LazyCell(final int position, final int size) {
+            this.position = position;
+            this.size = size;
+        }
+
+        private int keySize() {
+            return mapped.getInt(position + Long.BYTES);
+        }
+
+        @Override
+        @NotNull
+        public ByteBuffer getKey() {
+            final var keyStart = position + Long.BYTES + Integer.BYTES;
+            return mapped.duplicate().position(keyStart).limit(keyStart + keySize()).slice();
+        }
+
+        @Override
+        @NotNull
+        public Table.Value getValue() {
+            final var deadFlagTimeStamp = mapped.getLong(position);
+            final var valueStart = position + Long.BYTES + Integer.BYTES + keySize();
+            final var value = mapped.duplicate().position(valueStart).limit(position + size).slice();
+            return Table.Value.of(value, deadFlagTimeStamp, generation);
+        }
+
+        @Override
+        public int compareTo(@NotNull final Table.ICell o) {
+            return Comparator.comparing(Table.ICell::getKey).thenComparing(Table.ICell::getValue).compare(this, o);
+        }
+    }
+
+    private int recordsCount() {
+        return shifts.length - 1;
+    }
+
+    /**
+     * Binary search over record keys.
+     *
+     * @return index of the key or of the first greater key
+     */
+    private int getElementIndex(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = recordsCount() - 1;
+        while (left <= right) {
+            final int mid = (left + right) / 2;
+            final ByteBuffer midKey = readLazyCell(getElementShift(mid), getElementSize(mid)).getKey();
+            final int compareResult = midKey.compareTo(key);
+
+            if (compareResult < 0) {
+                left = mid + 1;
+            } else if (compareResult > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return left;
+    }
+
+    private int getElementSize(final int index) {
+        if (index == shifts.length - 1) {
+            return getShiftsArrayShift() - getElementShift(index);
+        } else {
+            return getElementShift(index + 1) - getElementShift(index);
+        }
+    }
+
+    private int getShiftsArrayShift() {
+        return shifts[shifts.length - 1];
+    }
+
+    private int getElementShift(final int index) {
+        return shifts[index];
+    }
+
+    private LazyCell readLazyCell(final int position, final int size) {
+        return new LazyCell(position, size);
+    }
+
+    LegacyDiskTable(@NotNull final Path path,
+                    final int level,
+                    final int generation,
+                    @NotNull final ByteBuffer mapped) {
+        super(path, level, generation);
+        this.mapped = mapped;
+        var size = mapped.limit();
+        if (size >= BLOOM_TRAILER_SIZE && mapped.getLong(size - Long.BYTES) == BLOOM_MAGIC) {
+            final var trailer = size - BLOOM_TRAILER_SIZE;
+            final var hashCount = mapped.getInt(trailer);
+            final var bitsSize = mapped.getInt(trailer + Integer.BYTES);
+            size = trailer - bitsSize;
+            filter = BloomFilter.of(mapped.duplicate().position(size).limit(trailer).slice().asLongBuffer(),
+                    hashCount);
+        } else {
+            // Tables written before filters were introduced
+            filter = null;
+        }
+        final var elementsQuantity = mapped.getInt(size - Integer.BYTES);
+        final var arrayShift = size - Integer.BYTES * (elementsQuantity + 1);
+        shifts = new int[elementsQuantity + 1];
+        mapped.duplicate().position(arrayShift).slice().asIntBuffer().get(shifts, 0, elementsQuantity);
+        shifts[elementsQuantity] = arrayShift;
+    }
+
+    @Override
+    @Nullable
+    ByteBuffer firstKey() {
+        return recordsCount() == 0 ? null : readLazyCell(getElementShift(0), getElementSize(0)).getKey();
+    }
+
+    @Override
+    @Nullable
+    ByteBuffer lastKey() {
+        final var last = recordsCount() - 1;
+        return last < 0 ? null : readLazyCell(getElementShift(last), getElementSize(last)).getKey();
+    }
+
+    @Override
+    long sizeInBytes() {
+        return mapped.limit();
+    }
+
+    @Override
+    long getRecordCount() {
+        return recordsCount();
+    }
+
+    @Override
+    public boolean mightContain(final long hash) {
+        return filter == null || filter.mightContain(hash);
+    }
+
+    @Override
+    @Nullable
+    Table.Value find(@NotNull final ByteBuffer key) {
+        final var index = getElementIndex(key);
+        if (index >= recordsCount()) {
+            return null;
+        }
+        final var cell = readLazyCell(getElementShift(index), getElementSize(index));
+        return cell.getKey().equals(key) ? cell.getValue() : null;
+    }
+
+    @Override
+    public Iterator<Table.ICell> iterator() {
+        return new DiskTableIterator();
+    }
+
+    @Override
+    public Iterator<Table.ICell> iterator(@NotNull final ByteBuffer from) {
+        return new DiskTableIterator(from);
+    }
+
+    @Override
+    Iterator<Table.ICell> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return to == null ? new DiskTableIterator(from) : new DiskTableIterator(from, to);
+    }
+
+    @Override
+    public Iterator<Table.ICell> descendingIterator(@Nullable final ByteBuffer to) {
+        return new DescendingIterator(to == null ? recordsCount() - 1 : getElementIndex(to) - 1);
+    }
+
+    /**
+     * Walks offsets of records backwards.
+     */
+    private class DescendingIterator implements Iterator<Table.ICell> {
+        private int elementIndex;
+
+        DescendingIterator(final int elementIndex) {
+            this.elementIndex = elementIndex;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return elementIndex >= 0;
+        }
+
+        @Override
+        public Table.ICell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException("No more records in table");
+            }
+            final var result = readLazyCell(getElementShift(elementIndex), getElementSize(elementIndex));
+            --elementIndex;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Chooses tables to compact so that every level except the first holds tables with disjoint key ranges,
+ * and each level is {@link #LEVEL_SIZE_MULTIPLIER} times larger than the previous one.
+ * Flushed tables land in level 0 and are merged into level 1 together once there are enough of them.
+ * An overflowing level pushes one table at a time into the next level, going round its key range.
+ * A table made mostly of tombstones is pushed down too, and rewritten on its own in the deepest level,
+ * where its tombstones are dropped.
+ */
+final class LeveledCompaction implements CompactionStrategy {
+    static final int MAX_LEVEL = 6;
+    private static final int LEVEL_SIZE_MULTIPLIER = 10;
+    private final int levelZeroTrigger;
+    private final long levelBaseSize;
+    private final double tombstoneRatio;
+    /* Last key compacted from each level, the next table of the level is picked after it */
+    private final ByteBuffer[] cursors = new ByteBuffer[MAX_LEVEL + 1];
+
+    LeveledCompaction(@NotNull final Config config) {
+        this.levelZeroTrigger = config.getLevelZeroCompactionTrigger();
+        this.levelBaseSize = config.getLevelBaseSize();
+        this.tombstoneRatio = config.getTombstoneCompactionRatio();
+    }
+
+    private long maxLevelSize(final int level) {
+        var size = levelBaseSize;
+        for (int i = 1; i < level; i++) {
+            size *= LEVEL_SIZE_MULTIPLIER;
+        }
+        return size;
+    }
+
+    private static List<List<DiskTable>> byLevel(@NotNull final List<DiskTable> tables) {
+        final var levels = new ArrayList<List<DiskTable>>();
+        for (int i = 0; i <= MAX_LEVEL; i++) {
+            levels.add(new ArrayList<>());
+        }
+        for (final var table : tables) {
+            levels.get(Math.min(table.level, MAX_LEVEL)).add(table);
+        }
+        return levels;
+    }
+
+    private static void addOverlapping(@NotNull final List<DiskTable> inputs,
+                                       @NotNull final List<DiskTable> level) {
+        ByteBuffer first = null;
+        ByteBuffer last = null;
+        for (final var input : inputs) {
+            final var inputFirst = input.firstKey();
+            final var inputLast = input.lastKey();
+            if (inputFirst == null) {
+                continue;
+            }
+            first = first == null || inputFirst.compareTo(first) < 0 ? inputFirst : first;
+            last = last == null || inputLast.compareTo(last) > 0 ? inputLast : last;
+        }
+        for (final var table : level) {
+            if (table.overlaps(first, last)) {
+                inputs.add(table);
+            }
+        }
+    }
+
+    @NotNull
+    private DiskTable next(final int level, @NotNull final List<DiskTable> tables) {
+        final var cursor = cursors[level];
+        DiskTable smallest = null;
+        DiskTable afterCursor = null;
+        final Comparator<ByteBuffer> order = Comparator.nullsFirst(Comparator.naturalOrder());
+        for (final var table : tables) {
+            final var first = table.firstKey();
+            if (smallest == null || order.compare(first, smallest.firstKey()) < 0) {
+                smallest = table;
+            }
+            if (cursor != null && first != null && first.compareTo(cursor) > 0
+                    && (afterCursor == null || first.compareTo(afterCursor.firstKey()) < 0)) {
+                afterCursor = table;
+            }
+        }
+        return afterCursor == null ? smallest : afterCursor;
+    }
+
+    @Override
+    @Nullable
+    public synchronized Compaction pick(@NotNull final List<DiskTable> tables) {
+        final var levels = byLevel(tables);
+        if (levels.get(0).size() >= levelZeroTrigger) {
+            final var inputs = new ArrayList<>(levels.get(0));
+            addOverlapping(inputs, levels.get(1));
+            return Compaction.toLevel(inputs, 1);
+        }
+        for (int level = 1; level < MAX_LEVEL; level++) {
+            final var tablesOfLevel = levels.get(level);
+            final var size = tablesOfLevel.stream().mapToLong(DiskTable::sizeInBytes).sum();
+            if (size <= maxLevelSize(level)) {
+                continue;
+            }
+            final var table = next(level, tablesOfLevel);
+            cursors[level] = table.lastKey();
+            final var inputs = new ArrayList<DiskTable>();
+            inputs.add(table);
+            addOverlapping(inputs, levels.get(level + 1));
+            return Compaction.toLevel(inputs, level + 1);
+        }
+        return pickTombstones(tables, levels);
+    }
+
+    @Nullable
+    private static Compaction pushDown(@NotNull final DiskTable table,
+                                       @NotNull final List<DiskTable> tables,
+                                       @NotNull final List<List<DiskTable>> levels) {
+        final var level = Math.min(table.level, MAX_LEVEL);
+        var deepest = 0;
+        for (int i = 0; i <= MAX_LEVEL; i++) {
+            if (!levels.get(i).isEmpty()) {
+                deepest = i;
+            }
+        }
+        if (level < deepest || level == 0) {
+            // Level 0 tables overlap, so they go down all together
+            final var inputs = new ArrayList<DiskTable>(level == 0 ? levels.get(0) : List.of(table));
+            addOverlapping(inputs, levels.get(level + 1));
+            return Compaction.toLevel(inputs, level + 1);
+        }
+        // Tombstones are dropped only if no older table is left, otherwise the rewrite would repeat forever
+        final var oldest = tables.stream().allMatch(other -> other.generation >= table.generation);
+        return oldest ? Compaction.toLevel(List.of(table), level) : null;
+    }
+
+    @Nullable
+    private Compaction pickTombstones(@NotNull final List<DiskTable> tables,
+                                      @NotNull final List<List<DiskTable>> levels) {
+        final var table = CompactionTriggers.mostTombstones(tables, tombstoneRatio);
+        return table == null ? null : pushDown(table, tables, levels);
+    }
+}
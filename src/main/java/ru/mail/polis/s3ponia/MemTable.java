@@ -0,0 +1,97 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * In-memory sorted table that accepts writes until it is flushed to disk.
+ * Older versions of a key stay next to the latest one, so a view sees the table as of its sequence number
+ * while writes go on. Only the latest versions are flushed, views needing older ones retain the table itself.
+ */
+public interface MemTable {
+    int getGeneration();
+
+    /**
+     * Number of distinct keys.
+     */
+    int size();
+
+    /**
+     * Memory occupied by stored records, used to decide when to flush.
+     */
+    long sizeInBytes();
+
+    /**
+     * Iterator over the latest cells of all keys in <b>ascending</b> order.
+     */
+    @NotNull
+    default Iterator<Table.ICell> iterator() {
+        return iterator(ByteBuffer.allocate(0));
+    }
+
+    /**
+     * Provides iterator (possibly empty) over the latest cells starting at "from" key (inclusive)
+     * in <b>ascending</b> order.
+     */
+    @NotNull
+    default Iterator<Table.ICell> iterator(@NotNull final ByteBuffer from) {
+        return iterator(from, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Provides iterator (possibly empty) over cells starting at "from" key (inclusive)
+     * until "to" key (exclusive) in <b>ascending</b> order.
+     * Each cell holds the latest version of its key not newer than the sequence number,
+     * keys with only newer versions are skipped.
+     *
+     * @param to       - key after the last one, null for no bound
+     * @param sequence - last sequence number of records to see
+     */
+    @NotNull
+    Iterator<Table.ICell> iterator(@NotNull ByteBuffer from, @Nullable ByteBuffer to, long sequence);
+
+    /**
+     * Provides iterator (possibly empty) over cells with keys less than "to" key
+     * in <b>descending</b> order, versions are chosen as in {@link #iterator(ByteBuffer, ByteBuffer, long)}.
+     *
+     * @param to       - key after the first one, null to start at the largest key
+     * @param sequence - last sequence number of records to see
+     */
+    @NotNull
+    Iterator<Table.ICell> descendingIterator(@Nullable ByteBuffer to, long sequence);
+
+    /**
+     * Finds the latest value or tombstone of the key not newer than the sequence number.
+     *
+     * @param sequence - last sequence number of records to see
+     * @return null if the table has no such record for the key
+     */
+    @Nullable
+    Table.Value get(@NotNull ByteBuffer key, long sequence);
+
+    /**
+     * Adds the record as a version of its key. Versions are kept in sequence order whatever order
+     * concurrent writes arrive in, so the latest one is the same as in the log.
+     */
+    void upsert(@NotNull ByteBuffer key, @NotNull Table.Value value);
+
+    /**
+     * Keeps the table readable until the matching {@link #release()}.
+     *
+     * @return false if the table is released already, its records are in disk tables then
+     */
+    default boolean retain() {
+        return true;
+    }
+
+    /**
+     * Drops a reference taken by {@link #retain()} or the one the table is created with,
+     * which its owner drops once the table is flushed. Memory is released with the last reference.
+     */
+    default void release() {
+        // Heap tables are collected by GC
+    }
+}
@@ -0,0 +1,159 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Merges sorted sources into one sorted sequence with a single record per key, the newest one.
+ * Keys go in ascending order, or in descending one if all sources are descending.
+ * Sources compete in a loser tree: each inner node keeps the source that lost there,
+ * so advancing the winner costs one comparison per tree level.
+ * Current key and value of each source are cached, keys are compared as raw bytes.
+ */
+final class MergeIterator implements Iterator<Table.ICell> {
+    private final List<Iterator<Table.ICell>> sources;
+    private final Table.ICell[] heads;
+    /* Null for exhausted sources, which lose to any other */
+    private final ByteBuffer[] keys;
+    private final Table.Value[] values;
+    /* Inner nodes 1..size-1 keep losers, leaves size..2*size-1 stand for sources */
+    private final int[] losers;
+    private final int size;
+    /* 1 for ascending keys, -1 for descending ones */
+    private final int order;
+    private int winner;
+
+    private MergeIterator(@NotNull final List<Iterator<Table.ICell>> sources, final int order) {
+        this.size = sources.size();
+        this.order = order;
+        this.sources = List.copyOf(sources);
+        this.heads = new Table.ICell[size];
+        this.keys = new ByteBuffer[size];
+        this.values = new Table.Value[size];
+        this.losers = new int[size];
+        for (int i = 0; i < size; i++) {
+            advance(i);
+        }
+        winner = size == 0 ? 0 : build(1);
+    }
+
+    /**
+     * Creates merge of sources sorted by key, each holding at most one record of a key.
+     */
+    static MergeIterator of(@NotNull final List<Iterator<Table.ICell>> sources) {
+        return new MergeIterator(sources, 1);
+    }
+
+    /**
+     * Creates merge of sources sorted by key in descending order, each holding at most one record of a key.
+     */
+    static MergeIterator descending(@NotNull final List<Iterator<Table.ICell>> sources) {
+        return new MergeIterator(sources, -1);
+    }
+
+    /**
+     * Compares keys as {@link ByteBuffer#compareTo(ByteBuffer)} does, looking at bytes only once.
+     */
+    static int compareKeys(@NotNull final ByteBuffer left, @NotNull final ByteBuffer right) {
+        final var mismatch = left.mismatch(right);
+        if (mismatch < 0) {
+            return 0;
+        }
+        if (mismatch < left.remaining() && mismatch < right.remaining()) {
+            return Byte.compare(left.get(left.position() + mismatch), right.get(right.position() + mismatch));
+        }
+        return left.remaining() - right.remaining();
+    }
+
+    private void advance(final int source) {
+        final var iterator = sources.get(source);
+        if (iterator.hasNext()) {
+            final var head = iterator.next();
+            heads[source] = head;
+            keys[source] = head.getKey();
+            values[source] = head.getValue();
+        } else {
+            heads[source] = null;
+            keys[source] = null;
+            values[source] = null;
+        }
+    }
+
+    /**
+     * Whether the first source goes before the second one: key coming first in the order,
+     * the newest value among equal keys.
+     */
+    private boolean beats(final int first, final int second) {
+        if (keys[second] == null) {
+            return true;
+        }
+        if (keys[first] == null) {
+            return false;
+        }
+        final var compareResult = order * compareKeys(keys[first], keys[second]);
+        if (compareResult != 0) {
+            return compareResult < 0;
+        }
+        final var firstValue = values[first];
+        final var secondValue = values[second];
+        if (firstValue.getGeneration() != secondValue.getGeneration()) {
+            return firstValue.getGeneration() > secondValue.getGeneration();
+        }
+        return firstValue.getSequence() >= secondValue.getSequence();
+    }
+
+    private int build(final int node) {
+        if (node >= size) {
+            return node - size;
+        }
+        final var left = build(2 * node);
+        final var right = build(2 * node + 1);
+        if (beats(left, right)) {
+            losers[node] = right;
+            return left;
+        }
+        losers[node] = left;
+        return right;
+    }
+
+    /**
+     * Plays matches on the path from the changed source to the root.
+     */
+    private void replay(final int source) {
+        var current = source;
+        for (int node = (source + size) >> 1; node >= 1; node >>= 1) {
+            if (beats(losers[node], current)) {
+                final var loser = current;
+                current = losers[node];
+                losers[node] = loser;
+            }
+        }
+        winner = current;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return size > 0 && keys[winner] != null;
+    }
+
+    @Override
+    public Table.ICell next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more records in merge");
+        }
+        final var result = heads[winner];
+        final var key = keys[winner];
+        advance(winner);
+        replay(winner);
+        // Older records of the same key come next, they are skipped in the same pass
+        while (keys[winner] != null && compareKeys(keys[winner], key) == 0) {
+            advance(winner);
+            replay(winner);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,283 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memtable that keeps keys and values in direct memory slabs.
+ * Heap holds only the index: key views into slabs mapped to packed addresses of the newest records.
+ * Record layout in a slab: sequence(long) older(long) keySize(int) valueSize(int, -1 for tombstone) key value,
+ * where older is the address of the previous version of the key, -1 for none.
+ * Once the table is flushed and the last reader releases it, all its slabs go back to the pool of the store
+ * at once, and the next memtables fill them instead of allocating new ones.
+ * A record read from the table may outlive its slab, so cells are heap copies.
+ * <p>
+ * Slabs count against -XX:MaxDirectMemorySize, which by default equals the maximum heap size,
+ * so off-heap memtables do not get past the heap limit unless the direct memory limit is raised.
+ * The store holds slabs of the current table, tables waiting for flush or pinned by readers, and the pool.
+ */
+public class OffHeapTable implements MemTable {
+    static final int SLAB_SIZE = 1024 * 1024;
+    private static final int RECORD_HEADER = Long.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+    private static final int OLDER_OFFSET = Long.BYTES;
+    private static final int KEY_SIZE_OFFSET = OLDER_OFFSET + Long.BYTES;
+    private static final int VALUE_SIZE_OFFSET = KEY_SIZE_OFFSET + Integer.BYTES;
+    private static final int TOMBSTONE_SIZE = -1;
+    private static final long NONE = -1;
+
+    private final ConcurrentNavigableMap<ByteBuffer, Long> index = new ConcurrentSkipListMap<>();
+    private final List<ByteBuffer> slabs = new CopyOnWriteArrayList<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final int generation;
+    private final Queue<ByteBuffer> pool;
+    /* The owner holds one reference until the table is flushed */
+    private final AtomicInteger references = new AtomicInteger(1);
+    /* Current slab allocation state, guarded by this */
+    private ByteBuffer slab;
+    private int slabIndex = -1;
+    private long allocated;
+
+    /**
+     * Creates empty table.
+     *
+     * @param generation - generation of the table
+     * @param pool       - free slabs shared by tables of the store
+     */
+    public OffHeapTable(final int generation, @NotNull final Queue<ByteBuffer> pool) {
+        this.generation = generation;
+        this.pool = pool;
+    }
+
+    private static long address(final int slab, final int offset) {
+        return ((long) slab << Integer.SIZE) | offset;
+    }
+
+    private static int slabOf(final long address) {
+        return (int) (address >>> Integer.SIZE);
+    }
+
+    private static int offsetOf(final long address) {
+        return (int) address;
+    }
+
+    /**
+     * Reserves space for a record. Records larger than a slab get a dedicated slab.
+     *
+     * @return address of reserved space
+     */
+    private synchronized long allocate(final int recordSize) {
+        if (recordSize > SLAB_SIZE) {
+            slabs.add(ByteBuffer.allocateDirect(recordSize));
+            allocated += recordSize;
+            return address(slabs.size() - 1, 0);
+        }
+        if (slab == null || slab.remaining() < recordSize) {
+            final var free = pool.poll();
+            slab = free == null ? ByteBuffer.allocateDirect(SLAB_SIZE) : free.clear();
+            slabs.add(slab);
+            slabIndex = slabs.size() - 1;
+            allocated += SLAB_SIZE;
+        }
+        final var offset = slab.position();
+        slab.position(offset + recordSize);
+        return address(slabIndex, offset);
+    }
+
+    private synchronized long allocated() {
+        return allocated;
+    }
+
+    @Override
+    public int getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Bytes of direct memory taken by slabs, including unused slab tails.
+     */
+    @Override
+    public long sizeInBytes() {
+        return allocated();
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final Table.Value value) {
+        final var valueBuffer = value.getValue();
+        final var keySize = key.remaining();
+        final var valueSize = valueBuffer.remaining();
+        final var address = allocate(RECORD_HEADER + keySize + valueSize);
+        // Each writer fills its own region, the index publishes it to readers
+        final var record = slabs.get(slabOf(address)).duplicate().position(offsetOf(address));
+        record.putLong(value.getSequence())
+                .putLong(NONE)
+                .putInt(keySize)
+                .putInt(value.isDead() ? TOMBSTONE_SIZE : valueSize)
+                .put(key.duplicate())
+                .put(valueBuffer);
+        final var keyView = record.duplicate()
+                .position(offsetOf(address) + RECORD_HEADER)
+                .limit(offsetOf(address) + RECORD_HEADER + keySize)
+                .slice()
+                .asReadOnlyBuffer();
+        while (true) {
+            final var previous = index.get(keyView);
+            if (previous == null) {
+                if (index.putIfAbsent(keyView, address) == null) {
+                    size.incrementAndGet();
+                    return;
+                }
+            } else if (index.replace(keyView, previous, insert(previous, address))) {
+                // Records of a list lost to a concurrent write stay unreferenced in their slabs
+                return;
+            }
+        }
+    }
+
+    /**
+     * Puts the unpublished record into the list of versions in sequence order.
+     * Published records never change, so versions newer than the record are copied.
+     *
+     * @return address of the newest version of the resulting list
+     */
+    private long insert(final long newest, final long address) {
+        if (sequence(newest) <= sequence(address)) {
+            setOlder(address, newest);
+            return address;
+        }
+        final var older = older(newest);
+        final var copy = copyRecord(newest);
+        if (older == NONE) {
+            setOlder(address, NONE);
+            setOlder(copy, address);
+        } else {
+            setOlder(copy, insert(older, address));
+        }
+        return copy;
+    }
+
+    private long copyRecord(final long address) {
+        final var slab = slabs.get(slabOf(address));
+        final var offset = offsetOf(address);
+        final var size = RECORD_HEADER + slab.getInt(offset + KEY_SIZE_OFFSET)
+                + Math.max(slab.getInt(offset + VALUE_SIZE_OFFSET), 0);
+        final var copy = allocate(size);
+        slabs.get(slabOf(copy)).duplicate().position(offsetOf(copy))
+                .put(slab.duplicate().limit(offset + size).position(offset));
+        return copy;
+    }
+
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        return ByteBuffer.allocate(buffer.remaining()).put(buffer.duplicate()).flip();
+    }
+
+    private long sequence(final long address) {
+        return slabs.get(slabOf(address)).getLong(offsetOf(address));
+    }
+
+    private long older(final long address) {
+        return slabs.get(slabOf(address)).getLong(offsetOf(address) + OLDER_OFFSET);
+    }
+
+    private void setOlder(final long address, final long older) {
+        slabs.get(slabOf(address)).putLong(offsetOf(address) + OLDER_OFFSET, older);
+    }
+
+    /**
+     * Address of the newest version not newer than the sequence number, {@link #NONE} if there is none.
+     */
+    private long find(final long newest, final long sequence) {
+        var address = newest;
+        while (address != NONE && sequence(address) > sequence) {
+            address = older(address);
+        }
+        return address;
+    }
+
+    private Table.Value value(final long address) {
+        final var slab = slabs.get(slabOf(address));
+        final var offset = offsetOf(address);
+        final var valueSize = slab.getInt(offset + VALUE_SIZE_OFFSET);
+        final var valueStart = offset + RECORD_HEADER + slab.getInt(offset + KEY_SIZE_OFFSET);
+        final var value = copy(slab.duplicate().limit(valueStart + Math.max(valueSize, 0)).position(valueStart));
+        final var stored = Table.Value.of(value, sequence(address), generation);
+        return valueSize == TOMBSTONE_SIZE ? stored.setDeadFlag() : stored;
+    }
+
+    @Override
+    @Nullable
+    public Table.Value get(@NotNull final ByteBuffer key, final long sequence) {
+        final var newest = index.get(key);
+        if (newest == null) {
+            return null;
+        }
+        final var address = find(newest, sequence);
+        return address == NONE ? null : value(address);
+    }
+
+    private Iterator<Table.ICell> cells(@NotNull final Map<ByteBuffer, Long> map, final long sequence) {
+        return map.entrySet().stream()
+                .map(e -> {
+                    final var address = find(e.getValue(), sequence);
+                    return address == NONE ? null : (Table.ICell) Table.Cell.of(copy(e.getKey()), value(address));
+                })
+                .filter(Objects::nonNull)
+                .iterator();
+    }
+
+    @Override
+    @NotNull
+    public Iterator<Table.ICell> iterator(@NotNull final ByteBuffer from,
+                                          @Nullable final ByteBuffer to,
+                                          final long sequence) {
+        return cells(to == null ? index.tailMap(from) : index.subMap(from, to), sequence);
+    }
+
+    @Override
+    @NotNull
+    public Iterator<Table.ICell> descendingIterator(@Nullable final ByteBuffer to, final long sequence) {
+        return cells(to == null ? index.descendingMap() : index.headMap(to).descendingMap(), sequence);
+    }
+
+    @Override
+    public boolean retain() {
+        return references.getAndUpdate(count -> count == 0 ? 0 : count + 1) != 0;
+    }
+
+    @Override
+    public void release() {
+        if (references.decrementAndGet() == 0) {
+            recycle();
+        }
+    }
+
+    private synchronized void recycle() {
+        index.clear();
+        for (final var buffer : slabs) {
+            // Dedicated slabs of large records are left to GC
+            if (buffer.capacity() == SLAB_SIZE) {
+                pool.offer(buffer);
+            }
+        }
+        slabs.clear();
+        slab = null;
+        slabIndex = -1;
+        allocated = 0;
+        size.set(0);
+    }
+}
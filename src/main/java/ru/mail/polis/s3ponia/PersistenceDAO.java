@@ -1,46 +1,433 @@
 package ru.mail.polis.s3ponia;
 
-import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.DAO;
-import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
+import ru.mail.polis.WriteBatch;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.logging.Logger;
 
 public final class PersistenceDAO implements DAO {
+    private static final Logger logger = Logger.getLogger(PersistenceDAO.class.getName());
+    private static final long MIN_FREE_MEMORY = 128 * 1024 * 1024 / 32;
+    private static final int MAX_FROZEN_TABLES = 2;
+    /* Most values of value log relocated with one log record */
+    private static final int RELOCATION_BATCH = 256;
     private final DiskManager manager;
-    private final Table currTable;
+    private final WriteAheadLog wal;
+    private final ExecutorService flusher;
+    private final ExecutorService compactor;
+    private final CompactionStrategy compactionStrategy;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    /* Last sequence number given to a write */
+    private final AtomicLong sequence;
+    /* Last sequence number which write and all earlier ones are applied, written under publication monitor */
+    private volatile long visible;
+    private final Object publication = new Object();
+    /* Number of times current table was replaced, lets a view check that it has not missed a new table */
+    private final AtomicLong freezes = new AtomicLong();
+    private final Semaphore flushPermits = new Semaphore(MAX_FROZEN_TABLES);
+    /* Tables waiting for flush, newest first */
+    private final List<MemTable> frozenTables = new CopyOnWriteArrayList<>();
+    /* Slabs of flushed off-heap memtables, reused by the next ones */
+    private final Queue<ByteBuffer> slabPool;
+    private volatile MemTable currTable;
+    private volatile Throwable flushFailure;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Config config;
     private final long maxMemory;
-    private long currMemory;
-    private static final long MIN_FREE_MEMORY = 128 * 1024 * 1024 / 32;
 
-    private PersistenceDAO(final File data, final long maxMemory) throws IOException {
+    private PersistenceDAO(final File data, final long maxMemory, final Config config) throws IOException {
+        this.config = config;
+        // The pool keeps no more than one full memtable
+        this.slabPool = new ArrayBlockingQueue<>((int) Math.min(Integer.MAX_VALUE,
+                maxMemory / OffHeapTable.SLAB_SIZE + 1));
         this.manager = new DiskManager(Paths.get(data.getAbsolutePath(),
-                DiskManager.META_PREFIX + data.getName() + DiskManager.META_EXTENSION));
-        this.currTable = new Table(manager.getGeneration());
+                DiskManager.META_PREFIX + data.getName() + DiskManager.META_EXTENSION), config);
+        this.wal = WriteAheadLog.open(data.toPath(), config.getFsyncPolicy(), config.getFsyncIntervalMs());
+        final var recovered = newTable(manager.getGeneration());
+        final var lastSegment = wal.replay(recovered);
+        if (recovered.size() > 0) {
+            manager.save(recovered);
+        }
+        recovered.release();
+        // Saved table is forced and listed in meta file, so the log is no longer needed
+        wal.release(lastSegment);
+        // Recovered records are saved already, so their sequence numbers are counted too
+        this.sequence = new AtomicLong(manager.getMaxSequence());
+        this.visible = sequence.get();
+        this.currTable = newTable(manager.getGeneration());
         this.maxMemory = maxMemory;
+        this.flusher = Executors.newSingleThreadExecutor(r -> {
+            final var thread = new Thread(r, "memtable-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.compactionStrategy = CompactionStrategy.of(config);
+        this.compactor = Executors.newSingleThreadExecutor(r -> {
+            final var thread = new Thread(r, "table-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduleCompaction();
+    }
+
+    private MemTable newTable(final int generation) {
+        return config.isOffHeapMemTable() ? new OffHeapTable(generation, slabPool) : new Table(generation);
+    }
+
+    /**
+     * Makes current table read-only and hands it to background flusher.
+     * Blocks while {@link #MAX_FROZEN_TABLES} tables are already waiting for flush.
+     * Must be called under write lock.
+     */
+    private void freeze() throws IOException {
+        checkFlushFailure();
+        try {
+            flushPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for flush");
+        }
+        final var frozen = currTable;
+        final var segment = wal.rotate();
+        // Publish frozen table before the fresh one, so readers never miss it
+        frozenTables.add(0, frozen);
+        currTable = newTable(frozen.getGeneration() + 1);
+        // Counted after the fresh table is published, so a view which saw the count sees the table too
+        freezes.incrementAndGet();
+        flusher.execute(() -> flush(frozen, segment));
+    }
+
+    private void flush(final MemTable table, final long segment) {
+        try {
+            if (flushFailure != null) {
+                return;
+            }
+            // Table becomes visible on disk before it leaves the frozen list
+            manager.save(table);
+            frozenTables.remove(table);
+            table.release();
+            wal.release(segment);
+            scheduleCompaction();
+        } catch (IOException | RuntimeException | Error e) {
+            // Task of the executor dies silently otherwise, leaving the table frozen forever
+            logger.warning(e.toString());
+            flushFailure = e;
+        } finally {
+            flushPermits.release();
+        }
+    }
+
+    private static void await(@NotNull final Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for background task");
+        } catch (ExecutionException e) {
+            final var cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private void awaitFlushes() throws IOException {
+        await(flusher.submit(() -> {
+            // Flusher is single threaded, so all previous flushes are done when this one runs
+        }));
+        checkFlushFailure();
     }
 
-    private void flush() throws IOException {
-        manager.save(currTable);
-        currMemory = 0;
-        currTable.close();
+    /**
+     * Runs compactions chosen by {@link CompactionStrategy} in background until no level needs one,
+     * then collects value log if it grew by a file since the last collection.
+     * Called after each flush, a run already waiting in the queue covers the new table too.
+     */
+    private void scheduleCompaction() {
+        if (!compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            compactor.execute(() -> {
+                compactionScheduled.set(false);
+                try {
+                    var compacted = true;
+                    while (compacted && !compactor.isShutdown()) {
+                        compacted = compactOnce();
+                    }
+                    final var valueLog = manager.getValueLog();
+                    if (valueLog.getAppendedBytes() >= config.getValueLogFileSize()) {
+                        valueLog.resetAppendedBytes();
+                        collectValueFiles(config.getValueLogGarbageRatio());
+                    }
+                } catch (IOException e) {
+                    logger.warning("Background compaction failed: " + e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Store is closing, tables are compacted after it is opened again
+            logger.fine("Compaction skipped: " + e);
+        }
     }
 
-    private void checkToFlush() throws IOException {
-        if (maxMemory - currMemory < MIN_FREE_MEMORY && currTable.size() > 0) {
-            flush();
+    /**
+     * Picks and runs one compaction over current tables.
+     *
+     * @return false if nothing needs compaction
+     */
+    private boolean compactOnce() throws IOException {
+        final var tables = manager.acquire();
+        try {
+            final var compaction = compactionStrategy.pick(tables.getTables());
+            if (compaction == null) {
+                return false;
+            }
+            manager.compact(compaction);
+            return true;
+        } finally {
+            tables.release();
+        }
+    }
+
+    /**
+     * Collects sealed value files whose share of garbage reaches the ratio: their live values are written
+     * to the store again in batches and flushed, so tables point to newer files, then the files are dropped.
+     * Runs on compactor thread.
+     *
+     * @param garbageRatio - least share of garbage in a file worth collecting
+     */
+    private void collectValueFiles(final double garbageRatio) throws IOException {
+        final var files = manager.getValueLog().getSealedFiles();
+        // A flush appending to a file has begun before the file was sealed, its table must be visible
+        awaitFlushes();
+        final var collected = new ArrayList<ValueFile>();
+        var relocated = false;
+        for (final var file : files) {
+            final var live = new ArrayList<ValueLog.Entry>();
+            long liveBytes = 0;
+            try (var view = view()) {
+                for (final var entry : ValueLog.entries(file)) {
+                    if (isLive(view, entry)) {
+                        live.add(entry);
+                        liveBytes += entry.size();
+                    }
+                }
+            }
+            final var size = file.size();
+            final var garbage = size - liveBytes;
+            if (garbage == 0 || garbage < size * garbageRatio) {
+                continue;
+            }
+            var batch = new ArrayList<ValueLog.Entry>();
+            long batchBytes = 0;
+            for (final var entry : live) {
+                if (compactor.isShutdown()) {
+                    // Values moved so far are valid copies, the files are collected again later
+                    return;
+                }
+                batch.add(entry);
+                batchBytes += entry.valueSize();
+                // A batch fits the memory kept free in the current table
+                if (batch.size() == RELOCATION_BATCH || batchBytes >= MIN_FREE_MEMORY) {
+                    relocate(file, batch);
+                    batch = new ArrayList<>();
+                    batchBytes = 0;
+                }
+            }
+            if (!batch.isEmpty()) {
+                relocate(file, batch);
+            }
+            relocated |= !live.isEmpty();
+            collected.add(file);
+        }
+        if (relocated) {
+            flushCurrent();
+        }
+        for (final var file : collected) {
+            manager.dropValueFile(file);
+        }
+    }
+
+    /**
+     * Whether the newest record of the key in the view still points to the entry.
+     */
+    private static boolean isLive(@NotNull final Snapshot view, @NotNull final ValueLog.Entry entry) {
+        final var value = view.find(entry.key);
+        return value != null && value.isPointer() && value.getValue().equals(entry.pointer);
+    }
+
+    /**
+     * Writes values of the entries which are still live with one log record.
+     * Writers are not blocked: liveness is checked once all earlier writes are published,
+     * and a later write of a key goes to the same table with a greater sequence number, so it wins anyway.
+     */
+    private void relocate(@NotNull final ValueFile file, @NotNull final List<ValueLog.Entry> entries)
+            throws IOException {
+        final var read = new ArrayList<ByteBuffer>(entries.size());
+        for (final var entry : entries) {
+            read.add(file.read(entry.valueOffset(), entry.valueSize()));
+        }
+        final var keys = new ArrayList<ByteBuffer>(entries.size());
+        final var values = new ArrayList<Table.Value>(entries.size());
+        final MemTable table;
+        lock.readLock().lock();
+        try {
+            table = currTable;
+            final var first = sequence.getAndAdd(entries.size()) + 1;
+            try {
+                awaitPublished(first - 1);
+                // Tables can not be frozen under read lock, so the view needs no retry
+                final var memTables = new ArrayList<MemTable>();
+                memTables.add(table);
+                memTables.addAll(frozenTables);
+                try (var view = new Snapshot(retain(memTables), manager.acquire(), first - 1)) {
+                    for (int i = 0; i < entries.size(); i++) {
+                        if (isLive(view, entries.get(i))) {
+                            keys.add(entries.get(i).key);
+                            // Records of a log batch have consecutive sequence numbers
+                            values.add(Table.Value.of(read.get(i), first + values.size(), table.getGeneration()));
+                        }
+                    }
+                }
+                if (!keys.isEmpty()) {
+                    wal.append(keys, values);
+                    for (int i = 0; i < keys.size(); i++) {
+                        table.upsert(keys.get(i), values.get(i));
+                    }
+                }
+            } finally {
+                publish(first, first + entries.size() - 1);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        freezeIfFull(table);
+    }
+
+    /**
+     * Freezes current table if it is not empty and waits until all frozen tables are on disk.
+     */
+    private void flushCurrent() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (currTable.size() > 0) {
+                freeze();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        awaitFlushes();
+    }
+
+    private void checkFlushFailure() throws IOException {
+        final var failure = flushFailure;
+        if (failure != null) {
+            throw new IOException("Background flush failed", failure);
         }
     }
 
     public static PersistenceDAO of(final File data, final long memorySize) throws IOException {
-        return new PersistenceDAO(data, memorySize);
+        return of(data, memorySize, Config.defaults());
+    }
+
+    public static PersistenceDAO of(final File data, final long memorySize, final Config config) throws IOException {
+        return new PersistenceDAO(data, memorySize, config);
+    }
+
+    /**
+     * Number of times write-ahead log was forced to the storage device.
+     */
+    public long getLogSyncCount() {
+        return wal.getSyncCount();
+    }
+
+    /**
+     * Cache of table blocks, exposes hit and miss counters.
+     */
+    @NotNull
+    public BlockCache getBlockCache() {
+        return manager.getBlockCache();
+    }
+
+    /**
+     * Counters of bytes written by flushes and compactions.
+     */
+    @NotNull
+    public CompactionStats getCompactionStats() {
+        return manager.getStats();
+    }
+
+    /**
+     * Retains memtables for a view. A table already released is flushed, so disk tables acquired next hold it.
+     */
+    private static List<MemTable> retain(@NotNull final List<MemTable> tables) {
+        final var retained = new ArrayList<MemTable>(tables.size());
+        for (final var table : tables) {
+            if (table.retain()) {
+                retained.add(table);
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * View over current tables as of the last published write, which does not block writers.
+     * Disk tables are acquired after memtables, so a table flushed meanwhile is seen at least once,
+     * and the sequence number is read after both, so disk tables hold no records newer than it.
+     * A view which crossed a freeze might miss the fresh table, so it is taken again.
+     */
+    private Snapshot view() {
+        while (true) {
+            final var seenFreezes = freezes.get();
+            final var memTables = new ArrayList<MemTable>();
+            memTables.add(currTable);
+            memTables.addAll(frozenTables);
+            final var retained = retain(memTables);
+            final var tables = manager.acquire();
+            final var view = new Snapshot(retained, tables, visible);
+            if (freezes.get() == seenFreezes) {
+                return view;
+            }
+            view.close();
+        }
+    }
+
+    /**
+     * Creates consistent view of the store, which is not affected by later writes and compactions.
+     * Writers and flushes go on: the view pins current tables and skips records written after it.
+     * Tables of the view are kept in memory and on disk until it is closed.
+     */
+    @NotNull
+    public Snapshot snapshot() {
+        return view();
     }
 
     /**
@@ -49,73 +436,235 @@ public final class PersistenceDAO implements DAO {
      */
     @NotNull
     public Iterator<Record> iterator() {
-        final var diskTables = manager.diskTables();
-        final var diskIterators = new ArrayList<Iterator<Table.ICell>>();
-        diskIterators.add(currTable.iterator());
-        diskTables.forEach(diskTable -> diskIterators.add(diskTable.iterator()));
-        final var merge = Iterators.mergeSorted(diskIterators, Table.ICell::compareTo);
-        final var newest = Iters.collapseEquals(merge, Table.ICell::getKey);
-        final var removeDead = Iterators.filter(newest, el -> !el.getValue().isDead());
-
-        return Iterators.transform(removeDead, c -> Record.of(c.getKey(), c.getValue().getValue()));
+        try (var view = view()) {
+            return view.iterator(ByteBuffer.allocate(0));
+        }
     }
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
-        final var diskTables = manager.diskTables();
-        final var diskIterators = new ArrayList<Iterator<Table.ICell>>();
-        diskIterators.add(currTable.iterator(from));
-        diskTables.forEach(diskTable -> diskIterators.add(diskTable.iterator(from)));
-        final var merge = Iterators.mergeSorted(diskIterators, Table.ICell::compareTo);
-        final var newest = Iters.collapseEquals(merge, Table.ICell::getKey);
-        final var removeDead = Iterators.filter(newest, el -> !el.getValue().isDead());
+        try (var view = view()) {
+            return view.iterator(from);
+        }
+    }
 
-        return Iterators.transform(removeDead, c -> Record.of(c.getKey(), c.getValue().getValue()));
+    /**
+     * Iterator over records from the key (inclusive) until the key (exclusive).
+     * The bound is passed down to every table, so tables past it are not read at all.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        try (var view = view()) {
+            return view.range(from, to);
+        }
     }
 
+    @NotNull
     @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        currMemory += key.limit() + value.limit() + Long.BYTES + Integer.BYTES;
-        checkToFlush();
-        if (currMemory != 0) {
-            currMemory -= key.limit() + value.limit() + Long.BYTES + Integer.BYTES;
+    public Iterator<Record> descendingRange(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        try (var view = view()) {
+            return view.descendingRange(from, to);
         }
-        currTable.upsert(key, value);
-        currMemory += key.limit() + value.limit() + Long.BYTES + Integer.BYTES;
+    }
 
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws NoSuchElementException {
+        try (var view = view()) {
+            return view.get(key);
+        }
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        write(key, table -> Table.Value.of(value, sequence.incrementAndGet(), table.getGeneration()));
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        currMemory += key.limit() + Long.BYTES + Integer.BYTES;
-        checkToFlush();
-        if (currMemory != 0) {
-            currMemory -= key.limit() + Long.BYTES + Integer.BYTES;
+        write(key, table -> Table.Value.dead(sequence.incrementAndGet(), table.getGeneration()));
+    }
+
+    private void write(@NotNull final ByteBuffer key,
+                       @NotNull final Function<MemTable, Table.Value> valueFactory) throws IOException {
+        final MemTable table;
+        lock.readLock().lock();
+        try {
+            table = currTable;
+            final var record = valueFactory.apply(table);
+            try {
+                // Log rotation takes write lock, so the record lands in the segment of its table
+                wal.append(key, record);
+                table.upsert(key, record);
+            } finally {
+                publish(record.getSequence(), record.getSequence());
+            }
+        } finally {
+            lock.readLock().unlock();
         }
-        currTable.remove(key);
-        currMemory += key.limit() + Long.BYTES + Integer.BYTES;
+        freezeIfFull(table);
     }
 
+    /**
+     * Applies the batch with one log record and one memory check.
+     * Its mutations are published at once, so reads and recovery after a crash see either all or none of them.
+     */
     @Override
-    public void close() throws IOException {
-        if (currTable.size() > 0) {
-            flush();
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        final var keys = new ArrayList<ByteBuffer>(batch.size());
+        final var values = new ArrayList<Table.Value>(batch.size());
+        final MemTable table;
+        lock.readLock().lock();
+        try {
+            table = currTable;
+            final var generation = table.getGeneration();
+            final var first = sequence.getAndAdd(batch.size()) + 1;
+            try {
+                batch.forEach(new WriteBatch.Handler() {
+                    @Override
+                    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+                        keys.add(key);
+                        values.add(Table.Value.of(value, first + values.size(), generation));
+                    }
+
+                    @Override
+                    public void remove(@NotNull final ByteBuffer key) {
+                        keys.add(key);
+                        values.add(Table.Value.dead(first + values.size(), generation));
+                    }
+                });
+                wal.append(keys, values);
+                for (int i = 0; i < keys.size(); i++) {
+                    table.upsert(keys.get(i), values.get(i));
+                }
+            } finally {
+                publish(first, first + batch.size() - 1);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        freezeIfFull(table);
+    }
+
+    /**
+     * Makes writes of the sequence numbers visible to views once all earlier writes are.
+     * Called under read lock whether the writes succeeded or not, so a failed write does not hold back later ones
+     * and a frozen table has all its writes published.
+     */
+    private void publish(final long first, final long last) {
+        awaitPublished(first - 1);
+        synchronized (publication) {
+            visible = last;
+            publication.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until writes up to the sequence number are published. Writes after it wait for the caller to publish.
+     */
+    private void awaitPublished(final long last) {
+        var interrupted = false;
+        synchronized (publication) {
+            while (visible != last) {
+                try {
+                    publication.wait();
+                } catch (InterruptedException e) {
+                    // Later writes wait for this one, so it is published anyway
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void freezeIfFull(@NotNull final MemTable table) throws IOException {
+        if (maxMemory - table.sizeInBytes() < MIN_FREE_MEMORY) {
+            lock.writeLock().lock();
+            try {
+                // Another writer may have frozen the table already
+                if (table == currTable) {
+                    freeze();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
         }
     }
 
     @Override
-    public void compact() throws IOException {
-        close();
-        final var it = iterator();
-        final var diskTables = manager.diskTables();
-        manager.clear();
-        while (it.hasNext()) {
-            final var record = it.next();
-            upsert(record.getKey(), record.getValue());
+    public void close() throws IOException {
+        // Value log collection writes and flushes, so background work stops before writers are locked out
+        compactor.shutdown();
+        awaitCompactor();
+        lock.writeLock().lock();
+        try {
+            try {
+                if (currTable.size() > 0) {
+                    freeze();
+                }
+                awaitFlushes();
+                currTable.release();
+            } finally {
+                flusher.shutdown();
+                manager.close();
+                wal.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
         }
-        for (final var disk : diskTables) {
-            disk.erase();
+    }
+
+    private void awaitCompactor() throws IOException {
+        try {
+            // Tables must not change once the store is closed and may be reopened
+            while (!compactor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Waiting for compaction to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for compaction");
         }
     }
+
+    /**
+     * Merges all tables into the deepest level in background and waits for it.
+     * Value log files holding any garbage are collected first, so their live values are merged too.
+     * Reads and writes are not blocked, records written meanwhile stay in newer tables.
+     */
+    @Override
+    public void compact() throws IOException {
+        flushCurrent();
+        await(compactor.submit(() -> {
+            manager.getValueLog().seal();
+            collectValueFiles(0);
+            final var tables = manager.acquire();
+            try {
+                if (!tables.getTables().isEmpty()) {
+                    manager.compact(Compaction.major(tables.getTables()));
+                }
+            } finally {
+                tables.release();
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Seals the active value log file and collects files holding enough garbage, waits for it.
+     * Collection also runs in background after compactions, once the log grew by a file.
+     */
+    public void collectValueLog() throws IOException {
+        manager.getValueLog().seal();
+        await(compactor.submit(() -> {
+            collectValueFiles(config.getValueLogGarbageRatio());
+            return null;
+        }));
+    }
 }
@@ -0,0 +1,116 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges runs of similarly sized tables once a run is long enough, so every record is rewritten
+ * about once per size tier. Tables of a run must be adjacent in generation order,
+ * otherwise merged records of an older table would outrank a newer table left between them.
+ * Tables of different sizes are merged too, cheapest first, once there are too many of them in total
+ * or covering a common key. A table made mostly of tombstones is merged with the older tables it shadows.
+ */
+final class SizeTieredCompaction implements CompactionStrategy {
+    private final int minThreshold;
+    private final int maxThreshold;
+    private final double bucketRatio;
+    private final int maxTableCount;
+    private final int maxOverlappingTables;
+    private final double tombstoneRatio;
+
+    SizeTieredCompaction(@NotNull final Config config) {
+        this.minThreshold = config.getSizeTieredMinThreshold();
+        this.maxThreshold = config.getSizeTieredMaxThreshold();
+        this.bucketRatio = config.getSizeTieredBucketRatio();
+        this.maxTableCount = config.getMaxTableCount();
+        this.maxOverlappingTables = config.getMaxOverlappingTables();
+        this.tombstoneRatio = config.getTombstoneCompactionRatio();
+    }
+
+    private boolean similar(final long size, final double average) {
+        return size >= average / bucketRatio && size <= average * bucketRatio;
+    }
+
+    @Override
+    @Nullable
+    public Compaction pick(@NotNull final List<DiskTable> tables) {
+        final var similar = pickSimilar(tables);
+        if (similar != null) {
+            return similar;
+        }
+        if (tables.size() > maxTableCount) {
+            final var all = new ArrayList<Integer>();
+            for (int i = 0; i < tables.size(); i++) {
+                all.add(i);
+            }
+            return pickCheapest(tables, all, tables.size() - maxTableCount + 1);
+        }
+        final var overlapping = CompactionTriggers.deepestOverlap(tables);
+        if (overlapping.size() > maxOverlappingTables) {
+            final var positions = new ArrayList<Integer>();
+            for (final var table : overlapping) {
+                positions.add(tables.indexOf(table));
+            }
+            return pickCheapest(tables, positions, overlapping.size() - maxOverlappingTables + 1);
+        }
+        final var table = CompactionTriggers.mostTombstones(tables, tombstoneRatio);
+        if (table == null) {
+            return null;
+        }
+        // The oldest table drops its tombstones when rewritten, others absorb the older neighbour they shadow
+        final var position = tables.indexOf(table);
+        return Compaction.adjacent(tables.subList(Math.max(0, position - 1), position + 1));
+    }
+
+    /**
+     * Picks the cheapest run of tables which includes the given number of chosen tables.
+     *
+     * @param tables    - tables ordered by generation
+     * @param positions - ascending positions of chosen tables
+     * @param count     - number of chosen tables to merge, capped by the maximum threshold
+     */
+    @NotNull
+    private Compaction pickCheapest(@NotNull final List<DiskTable> tables,
+                                    @NotNull final List<Integer> positions,
+                                    final int count) {
+        final var merged = Math.max(2, Math.min(count, maxThreshold));
+        List<DiskTable> best = null;
+        long bestSize = Long.MAX_VALUE;
+        for (int i = 0; i + merged <= positions.size(); i++) {
+            final var run = tables.subList(positions.get(i), positions.get(i + merged - 1) + 1);
+            final var size = run.stream().mapToLong(DiskTable::sizeInBytes).sum();
+            if (size < bestSize) {
+                best = run;
+                bestSize = size;
+            }
+        }
+        return Compaction.adjacent(best);
+    }
+
+    /**
+     * Picks the run of similar tables with the smallest tables, which is the cheapest to merge.
+     */
+    @Nullable
+    private Compaction pickSimilar(@NotNull final List<DiskTable> tables) {
+        List<DiskTable> best = null;
+        double bestAverage = Double.MAX_VALUE;
+        for (int start = 0; start + minThreshold <= tables.size(); start++) {
+            long total = tables.get(start).sizeInBytes();
+            int end = start + 1;
+            while (end < tables.size() && end - start < maxThreshold
+                    && similar(tables.get(end).sizeInBytes(), (double) total / (end - start))) {
+                total += tables.get(end).sizeInBytes();
+                end++;
+            }
+            final var average = (double) total / (end - start);
+            if (end - start >= minThreshold && average < bestAverage) {
+                best = tables.subList(start, end);
+                bestAverage = average;
+            }
+        }
+        return best == null ? null : Compaction.adjacent(best);
+    }
+}
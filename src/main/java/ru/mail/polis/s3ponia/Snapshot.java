@@ -0,0 +1,210 @@
+package ru.mail.polis.s3ponia;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Streams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Iters;
+import ru.mail.polis.Record;
+
+import java.io.Closeable;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * Read-only view of a {@link PersistenceDAO} over pinned memtables and disk tables as of a sequence number.
+ * Memtables may take writes after the view is created, records with later sequence numbers are skipped.
+ * Files of pinned tables stay on disk until the snapshot and all iterators obtained from it are released,
+ * even if compaction replaces them meanwhile. Memtables are pinned the same way, so their memory outlives flush.
+ */
+public final class Snapshot implements Closeable {
+    /* Releases tables of iterators dropped before reaching their end */
+    private static final Cleaner CLEANER = Cleaner.create();
+    /* Newest first */
+    private final List<MemTable> memTables;
+    private final TableSet tables;
+    /* Last sequence number of records seen by the view */
+    private final long sequence;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates view, taking over references to memtables and disk tables.
+     *
+     * @param memTables - retained memtables newest first
+     * @param tables    - retained disk tables, released when the view is closed,
+     *                  they must hold no records later than the sequence number
+     * @param sequence  - last sequence number of records to see, all records up to it must be in the tables
+     */
+    Snapshot(@NotNull final List<MemTable> memTables, @NotNull final TableSet tables, final long sequence) {
+        this.memTables = List.copyOf(memTables);
+        this.tables = tables;
+        this.sequence = sequence;
+    }
+
+    private void checkOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+
+    private static Iterator<Record> records(@NotNull final Iterator<Table.ICell> newest,
+                                            @NotNull final TableSet tables) {
+        final var removeDead = Iterators.filter(newest, el -> !el.getValue().isDead());
+
+        return Iterators.transform(removeDead, c -> Record.of(c.getKey(), tables.read(c.getValue())));
+    }
+
+    private static void release(@NotNull final List<MemTable> memTables, @NotNull final TableSet tables) {
+        memTables.forEach(MemTable::release);
+        tables.release();
+    }
+
+    /**
+     * Keeps tables of an iterator until it reaches the end or becomes unreachable.
+     */
+    private static final class TablesIterator implements Iterator<Record> {
+        private final Iterator<Record> delegate;
+        private final Cleaner.Cleanable tables;
+
+        TablesIterator(@NotNull final Iterator<Record> delegate,
+                       @NotNull final List<MemTable> memTables,
+                       @NotNull final TableSet tables) {
+            this.delegate = delegate;
+            this.tables = CLEANER.register(this, () -> release(memTables, tables));
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (delegate.hasNext()) {
+                return true;
+            }
+            tables.clean();
+            return false;
+        }
+
+        @Override
+        public Record next() {
+            return delegate.next();
+        }
+    }
+
+    /**
+     * Merges iterators of all tables, the merge yields the newest cell of each key.
+     */
+    @NotNull
+    private Iterator<Record> iterator(
+            @NotNull final Function<MemTable, Iterator<Table.ICell>> memTableIterator,
+            @NotNull final Function<DiskTable, Iterator<Table.ICell>> diskTableIterator,
+            @NotNull final Function<List<Iterator<Table.ICell>>, Iterator<Table.ICell>> merge) {
+        checkOpen();
+        final var iterators = new ArrayList<Iterator<Table.ICell>>();
+        memTables.forEach(table -> iterators.add(memTableIterator.apply(table)));
+        tables.getTables().forEach(diskTable -> iterators.add(diskTableIterator.apply(diskTable)));
+        // The iterator may outlive the view, which holds the tables, so taking them again always succeeds
+        memTables.forEach(MemTable::retain);
+        tables.retain();
+        return new TablesIterator(records(merge.apply(iterators), tables), memTables, tables);
+    }
+
+    /**
+     * Iterator over records of the view starting at the key.
+     */
+    @NotNull
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+        return range(from, null);
+    }
+
+    /**
+     * Iterator over records of the view from the key (inclusive) until the key (exclusive).
+     *
+     * @param from - first key
+     * @param to   - key after the last one, null for no bound
+     */
+    @NotNull
+    public Iterator<Record> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        // Each table stops at the bound itself, so the merge never reads past it
+        return iterator(table -> table.iterator(from, to, sequence), table -> table.iterator(from, to),
+                MergeIterator::of);
+    }
+
+    /**
+     * Iterator over records of the view from the key (inclusive) until the key (exclusive) in descending order,
+     * starting at the largest key less than "to". It stops at the first key less than "from",
+     * so taking a few records from the top of a wide range reads only them.
+     *
+     * @param from - smallest key
+     * @param to   - key after the largest one, null for no bound
+     */
+    @NotNull
+    public Iterator<Record> descendingRange(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        if (to != null && from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+        return iterator(table -> table.descendingIterator(to, sequence), table -> table.descendingIterator(to),
+                sources -> Streams.stream(MergeIterator.descending(sources))
+                        .takeWhile(cell -> cell.getKey().compareTo(from) >= 0)
+                        .iterator());
+    }
+
+    /**
+     * Point lookup: memtables first, then disk tables from newest to oldest.
+     * Stops at the first record of the key, a tombstone means the key is absent.
+     * A value moved to value log is returned as a pointer.
+     */
+    @Nullable
+    Table.Value find(@NotNull final ByteBuffer key) {
+        checkOpen();
+        for (final var table : memTables) {
+            final var value = table.get(key, sequence);
+            if (value != null) {
+                return value;
+            }
+        }
+        final var diskTables = tables.getTables();
+        if (diskTables.isEmpty()) {
+            return null;
+        }
+        // Every table checks its Bloom filter against the same hash
+        final var hash = BloomFilter.hash(key);
+        for (int i = diskTables.size() - 1; i >= 0; i--) {
+            final var stored = diskTables.get(i).get(key, hash);
+            if (stored != null) {
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Value of the key as of the view.
+     *
+     * @throws NoSuchElementException if there is no such key
+     */
+    @NotNull
+    public ByteBuffer get(@NotNull final ByteBuffer key) {
+        final var value = find(key);
+        if (value == null || value.isDead()) {
+            throw new NoSuchElementException("Not found");
+        }
+        return tables.read(value);
+    }
+
+    /**
+     * Releases pinned tables, iterators obtained from the view keep their own references.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release(memTables, tables);
+        }
+    }
+}
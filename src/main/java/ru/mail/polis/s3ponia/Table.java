@@ -1,16 +1,29 @@
 package ru.mail.polis.s3ponia;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.TreeMap;
-
-public class Table {
-    private final SortedMap<ByteBuffer, Value> keyToRecord;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memtable safe for concurrent writers and readers. Iterators are weakly consistent:
+ * they never throw {@link java.util.ConcurrentModificationException} and may or may not
+ * reflect writes made after their creation.
+ * Each key maps to an immutable list of its versions, the newest first.
+ */
+public class Table implements MemTable {
+    private final ConcurrentNavigableMap<ByteBuffer, Version> keyToRecord;
     private final int generation;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong sizeInBytes = new AtomicLong();
 
     public interface ICell extends Comparable<ICell> {
         @NotNull
@@ -53,35 +66,49 @@ public class Table {
         }
     }
 
+    /**
+     * Value or tombstone stamped with the sequence number of its write.
+     * Records of a newer table win, within a table the higher sequence number wins.
+     * Legacy tables written before the block format hold timestamps in place of sequence numbers.
+     * A value moved to {@link ValueLog} is held in tables as a pointer to it, marked with pointer flag.
+     */
     public static class Value implements Comparable<Value> {
         private final ByteBuffer byteBuffer;
         private static final long DEAD_FLAG = 0x4000000000000000L;
-        private final long deadFlagTimeStamp;
+        private static final long POINTER_FLAG = 0x2000000000000000L;
+        private final long deadFlagSequence;
         private final int generation;
 
         /**
          * Value constructor.
          *
-         * @param value             - byte buffer value
-         * @param deadFlagTimeStamp - timestamp+dead flag
-         * @param generation        - table generation
+         * @param value            - byte buffer value
+         * @param deadFlagSequence - sequence number+dead flag
+         * @param generation       - table generation
          */
-        public Value(final ByteBuffer value, final long deadFlagTimeStamp, final int generation) {
+        public Value(final ByteBuffer value, final long deadFlagSequence, final int generation) {
             this.byteBuffer = value;
-            this.deadFlagTimeStamp = deadFlagTimeStamp;
+            this.deadFlagSequence = deadFlagSequence;
             this.generation = generation;
         }
 
-        static Value dead(final int generation) {
-            return new Value(ByteBuffer.allocate(0), System.currentTimeMillis(), generation).setDeadFlag();
+        static Value dead(final long sequence, final int generation) {
+            return new Value(ByteBuffer.allocate(0), sequence, generation).setDeadFlag();
         }
 
-        static Value of(final ByteBuffer value, final int generation) {
-            return new Value(value, System.currentTimeMillis(), generation);
+        static Value of(final ByteBuffer value, final long deadFlagSequence, final int generation) {
+            return new Value(value, deadFlagSequence, generation);
         }
 
-        static Value of(final ByteBuffer value, final long deadFlagTimeStamp, final int generation) {
-            return new Value(value, deadFlagTimeStamp, generation);
+        /**
+         * Value stored in value log.
+         *
+         * @param pointer          - location of the value in value log
+         * @param deadFlagSequence - sequence number of the value
+         * @param generation       - table generation
+         */
+        static Value pointer(final ByteBuffer pointer, final long deadFlagSequence, final int generation) {
+            return new Value(pointer, deadFlagSequence | POINTER_FLAG, generation);
         }
 
         ByteBuffer getValue() {
@@ -89,75 +116,162 @@ public class Table {
         }
 
         Value setDeadFlag() {
-            return Value.of(byteBuffer, deadFlagTimeStamp | DEAD_FLAG, generation);
+            return Value.of(byteBuffer, deadFlagSequence | DEAD_FLAG, generation);
         }
 
         Value unsetDeadFlag() {
-            return Value.of(byteBuffer, deadFlagTimeStamp & ~DEAD_FLAG, generation);
+            return Value.of(byteBuffer, deadFlagSequence & ~DEAD_FLAG, generation);
         }
 
         boolean isDead() {
-            return (this.deadFlagTimeStamp & DEAD_FLAG) != 0;
+            return (this.deadFlagSequence & DEAD_FLAG) != 0;
         }
 
-        public long getDeadFlagTimeStamp() {
-            return deadFlagTimeStamp + generation;
+        /**
+         * Whether {@link #getValue()} is a pointer to value log rather than the value itself.
+         */
+        boolean isPointer() {
+            return (this.deadFlagSequence & POINTER_FLAG) != 0;
         }
 
-        public long getTimeStamp() {
-            return deadFlagTimeStamp & ~DEAD_FLAG;
+        /**
+         * Sequence number with dead and pointer flags, as stored in tables.
+         */
+        public long getDeadFlagSequence() {
+            return deadFlagSequence;
+        }
+
+        public long getSequence() {
+            return deadFlagSequence & ~(DEAD_FLAG | POINTER_FLAG);
         }
 
         public int getGeneration() {
             return generation;
         }
 
+        /**
+         * Orders newer values first.
+         */
         @Override
         public int compareTo(@NotNull final Value o) {
-            return Comparator.comparing(Value::getGeneration).reversed().compare(this, o);
+            return Comparator.comparing(Value::getGeneration).thenComparing(Value::getSequence).reversed()
+                    .compare(this, o);
+        }
+    }
+
+    /**
+     * Version of a key followed by older ones. A write replaces the whole list, so readers never see it half-built.
+     */
+    private static final class Version {
+        @NotNull
+        private final Value value;
+        @Nullable
+        private final Version older;
+
+        Version(@NotNull final Value value, @Nullable final Version older) {
+            this.value = value;
+            this.older = older;
+        }
+
+        /**
+         * List with the value put in sequence order, versions newer than it are copied.
+         */
+        Version with(@NotNull final Value added) {
+            if (added.getSequence() >= value.getSequence()) {
+                return new Version(added, this);
+            }
+            return new Version(value, older == null ? new Version(added, null) : older.with(added));
+        }
+
+        @Nullable
+        Value find(final long sequence) {
+            var version = this;
+            while (version != null && version.value.getSequence() > sequence) {
+                version = version.older;
+            }
+            return version == null ? null : version.value;
         }
     }
 
     public Table(final int generation) {
-        this.keyToRecord = new TreeMap<>();
+        this.keyToRecord = new ConcurrentSkipListMap<>();
         this.generation = generation;
     }
 
-    public int size() {
-        return keyToRecord.size();
+    private static long versionSize(@NotNull final Value value) {
+        return value.byteBuffer.remaining() + Long.BYTES + Integer.BYTES;
     }
 
-    public Iterator<ICell> iterator() {
-        return keyToRecord.entrySet().stream().map(e -> Cell.of(e.getKey(), e.getValue()))
-                .map(c -> (ICell) c).iterator();
+    @Override
+    public int getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
     }
 
     /**
-     * Provides iterator (possibly empty) over {@link Cell}s starting at "from" key (inclusive)
-     * in <b>ascending</b> order according to {@link Cell#compareTo(ICell)}.
-     * N.B. The iterator should be obtained as fast as possible, e.g.
-     * one should not "seek" to start point ("from" element) in linear time ;)
+     * Estimated heap footprint of stored keys and all versions of values.
      */
-    public Iterator<ICell> iterator(@NotNull final ByteBuffer from) {
-        return keyToRecord.tailMap(from).entrySet().stream().map(
-                e -> Cell.of(e.getKey(), e.getValue())
-        ).map(c -> (ICell) c).iterator();
+    @Override
+    public long sizeInBytes() {
+        return sizeInBytes.get();
     }
 
-    public ByteBuffer get(@NotNull final ByteBuffer key) {
-        final var val = keyToRecord.get(key);
-        return val == null ? null : val.getValue();
+    private static Iterator<ICell> cells(@NotNull final Map<ByteBuffer, Version> map, final long sequence) {
+        return map.entrySet().stream()
+                .map(e -> {
+                    final var value = e.getValue().find(sequence);
+                    return value == null ? null : (ICell) Cell.of(e.getKey(), value);
+                })
+                .filter(Objects::nonNull)
+                .iterator();
     }
 
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        keyToRecord.put(key, Value.of(value, generation));
+    @Override
+    @NotNull
+    public Iterator<ICell> iterator(@NotNull final ByteBuffer from,
+                                    @Nullable final ByteBuffer to,
+                                    final long sequence) {
+        return cells(to == null ? keyToRecord.tailMap(from) : keyToRecord.subMap(from, to), sequence);
     }
 
-    public void remove(@NotNull final ByteBuffer key) {
-        keyToRecord.put(key, Value.dead(generation));
+    @Override
+    @NotNull
+    public Iterator<ICell> descendingIterator(@Nullable final ByteBuffer to, final long sequence) {
+        return cells(to == null ? keyToRecord.descendingMap() : keyToRecord.headMap(to).descendingMap(), sequence);
+    }
+
+    @Override
+    @Nullable
+    public Value get(@NotNull final ByteBuffer key, final long sequence) {
+        final var versions = keyToRecord.get(key);
+        return versions == null ? null : versions.find(sequence);
+    }
+
+    @Override
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        while (true) {
+            final var previous = keyToRecord.get(key);
+            if (previous == null) {
+                if (keyToRecord.putIfAbsent(key, new Version(value, null)) == null) {
+                    size.incrementAndGet();
+                    sizeInBytes.addAndGet(key.remaining() + versionSize(value));
+                    return;
+                }
+            } else if (keyToRecord.replace(key, previous, previous.with(value))) {
+                // A concurrent write with a later sequence number may have got here first
+                sizeInBytes.addAndGet(versionSize(value));
+                return;
+            }
+        }
     }
 
     public void close() {
         keyToRecord.clear();
+        size.set(0);
+        sizeInBytes.set(0);
     }
 }
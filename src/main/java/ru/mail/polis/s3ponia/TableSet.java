@@ -0,0 +1,72 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable list of opened tables, replaced by {@link DiskManager} on flush and compaction.
+ * Readers retain the set they started with, so its tables stay on disk until they release it.
+ * Value log files are held the same way, so values tables point to stay readable.
+ */
+final class TableSet {
+    /* Oldest generation first */
+    private final List<DiskTable> tables;
+    private final List<ValueFile> valueFiles;
+    /* The manager holds one reference while the set is current */
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    TableSet(@NotNull final List<DiskTable> tables, @NotNull final List<ValueFile> valueFiles) {
+        this.tables = List.copyOf(tables);
+        this.valueFiles = List.copyOf(valueFiles);
+        this.tables.forEach(DiskTable::retain);
+        this.valueFiles.forEach(ValueFile::retain);
+    }
+
+    /**
+     * Tables ordered by generation, so a later table holds newer records.
+     */
+    @NotNull
+    List<DiskTable> getTables() {
+        return tables;
+    }
+
+    /**
+     * Value of the record, read from value log if the record points there.
+     *
+     * @throws UncheckedIOException if value log can not be read
+     */
+    @NotNull
+    ByteBuffer read(@NotNull final Table.Value value) {
+        if (!value.isPointer()) {
+            return value.getValue();
+        }
+        final var pointer = value.getValue();
+        final var number = ValueLog.fileNumber(pointer);
+        for (final var file : valueFiles) {
+            if (file.number == number) {
+                try {
+                    return file.read(ValueLog.valueOffset(pointer), ValueLog.valueSize(pointer));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+        throw new IllegalStateException("Value file " + number + " is missing");
+    }
+
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            tables.forEach(DiskTable::release);
+            valueFiles.forEach(ValueFile::release);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Append-only file of a {@link ValueLog}. Referenced by each {@link TableSet} including it, like tables are:
+ * the file is closed when the last of them is released and deleted then if garbage collection dropped it.
+ * Values are read from a mapping of the file, which is extended when a read reaches past it.
+ */
+final class ValueFile {
+    private static final Logger logger = Logger.getLogger(ValueFile.class.getName());
+    private static final long MAX_MAPPING_SIZE = Integer.MAX_VALUE;
+    final int number;
+    final Path file;
+    private final FileChannel channel;
+    private final AtomicInteger references = new AtomicInteger();
+    /* Mapping of the file from its start, replaced under lock of the file once the file has grown */
+    private volatile ByteBuffer mapped = ByteBuffer.allocate(0);
+    private volatile boolean obsolete;
+
+    private ValueFile(final int number, @NotNull final Path file, @NotNull final FileChannel channel) {
+        this.number = number;
+        this.file = file;
+        this.channel = channel;
+    }
+
+    static ValueFile open(final int number, @NotNull final Path file) throws IOException {
+        return new ValueFile(number, file, FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    /**
+     * Reads bytes written to the file as a read-only view of its mapping.
+     *
+     * @param offset - position in the file
+     * @param size   - number of bytes
+     */
+    @NotNull
+    ByteBuffer read(final long offset, final int size) throws IOException {
+        final var end = offset + size;
+        var view = mapped;
+        long start = 0;
+        if (end > view.limit()) {
+            view = extend(end);
+            if (view == null) {
+                // Past the largest mapping, the value is mapped on its own
+                view = map(offset, size);
+                start = offset;
+            }
+        }
+        final var position = (int) (offset - start);
+        // A mapping stays valid after the file is closed or deleted, until the last view of it is collected
+        return view.duplicate().position(position).limit(position + size).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Maps the file up to its current size.
+     *
+     * @param end - position the mapping must reach
+     * @return null if the position is past the largest mapping
+     */
+    private synchronized ByteBuffer extend(final long end) throws IOException {
+        if (end <= mapped.limit()) {
+            return mapped;
+        }
+        final var fileSize = size();
+        if (end > fileSize) {
+            throw new EOFException("Value file " + file + " is truncated");
+        }
+        if (end > MAX_MAPPING_SIZE) {
+            return null;
+        }
+        mapped = map(0, Math.min(fileSize, MAX_MAPPING_SIZE));
+        return mapped;
+    }
+
+    /**
+     * Channel I/O of an interrupted thread closes the channel for every reader,
+     * so interrupt status is cleared while the file is mapped and restored afterwards.
+     */
+    private ByteBuffer map(final long position, final long size) throws IOException {
+        final var interrupted = Thread.interrupted();
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    long size() throws IOException {
+        final var interrupted = Thread.interrupted();
+        try {
+            return channel.size();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    void release() {
+        if (references.decrementAndGet() != 0) {
+            return;
+        }
+        try {
+            channel.close();
+            if (obsolete) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            logger.warning(file + ": " + e);
+        }
+    }
+
+    /**
+     * Marks file which values are all rewritten. Must be called while the file is still referenced.
+     */
+    void markObsolete() {
+        obsolete = true;
+    }
+}
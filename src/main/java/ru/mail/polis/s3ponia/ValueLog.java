@@ -0,0 +1,238 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Large values moved out of tables, so compaction rewrites only pointers to them.
+ * Values are appended to the active file until it grows over the file size, then a new one is started.
+ * Each start of the store begins a new file, so a torn tail of a file is never appended to.
+ * <pre>
+ * entry:   keySize(int) valueSize(int) key value
+ * pointer: fileNumber(int) valueOffset(long) valueSize(int)
+ * </pre>
+ * Keys are kept to tell whether an entry is still referenced when the file is collected.
+ */
+final class ValueLog implements Closeable {
+    static final String EXTENSION = ".vlog";
+    static final int POINTER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private static final int ENTRY_HEADER = Integer.BYTES * 2;
+    private static final Pattern FILE_NAME = Pattern.compile("(\\d+)" + Pattern.quote(EXTENSION));
+    private final Path directory;
+    private final long fileSize;
+    /* Files by ascending number, the last one may be active; guarded by this */
+    private final List<ValueFile> files;
+    private final ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER);
+    private FileChannel writer;
+    private ValueFile active;
+    private long activeSize;
+    private boolean dirty;
+    private int lastNumber;
+    private long appendedBytes;
+
+    /**
+     * Entry of a value file.
+     */
+    static final class Entry {
+        final ByteBuffer key;
+        final ByteBuffer pointer;
+
+        Entry(@NotNull final ByteBuffer key, @NotNull final ByteBuffer pointer) {
+            this.key = key;
+            this.pointer = pointer;
+        }
+
+        int valueSize() {
+            return ValueLog.valueSize(pointer);
+        }
+
+        long valueOffset() {
+            return ValueLog.valueOffset(pointer);
+        }
+
+        /**
+         * Size of the entry in the file.
+         */
+        long size() {
+            return ENTRY_HEADER + key.remaining() + valueSize();
+        }
+    }
+
+    private ValueLog(@NotNull final Path directory, final long fileSize, @NotNull final List<ValueFile> files) {
+        this.directory = directory;
+        this.fileSize = fileSize;
+        this.files = files;
+        this.lastNumber = files.isEmpty() ? 0 : files.get(files.size() - 1).number;
+    }
+
+    /**
+     * Opens files found in the directory.
+     *
+     * @param directory - store directory
+     * @param fileSize  - size over which a new file is started
+     */
+    static ValueLog open(@NotNull final Path directory, final long fileSize) throws IOException {
+        final var files = new ArrayList<ValueFile>();
+        try (var paths = Files.list(directory)) {
+            for (final var path : paths.collect(Collectors.toList())) {
+                final var matcher = FILE_NAME.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    files.add(ValueFile.open(Integer.parseInt(matcher.group(1)), path));
+                }
+            }
+        }
+        files.sort(Comparator.comparingInt(file -> file.number));
+        return new ValueLog(directory, fileSize, files);
+    }
+
+    static int fileNumber(@NotNull final ByteBuffer pointer) {
+        return pointer.getInt(pointer.position());
+    }
+
+    static long valueOffset(@NotNull final ByteBuffer pointer) {
+        return pointer.getLong(pointer.position() + Integer.BYTES);
+    }
+
+    static int valueSize(@NotNull final ByteBuffer pointer) {
+        return pointer.getInt(pointer.position() + Integer.BYTES + Long.BYTES);
+    }
+
+    private static ByteBuffer pointer(final int number, final long offset, final int size) {
+        return ByteBuffer.allocate(POINTER_SIZE).putInt(number).putLong(offset).putInt(size).flip();
+    }
+
+    private void write(@NotNull final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            writer.write(buffer);
+        }
+    }
+
+    /**
+     * Appends value to the active file.
+     *
+     * @return pointer to the value
+     */
+    @NotNull
+    synchronized ByteBuffer append(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        if (writer == null) {
+            final var number = ++lastNumber;
+            final var path = directory.resolve(number + EXTENSION);
+            writer = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            active = ValueFile.open(number, path);
+            files.add(active);
+            activeSize = 0;
+        }
+        header.clear().putInt(key.remaining()).putInt(value.remaining()).flip();
+        write(header);
+        write(key.duplicate());
+        final var valueOffset = activeSize + ENTRY_HEADER + key.remaining();
+        write(value.duplicate());
+        final var entrySize = ENTRY_HEADER + key.remaining() + value.remaining();
+        activeSize += entrySize;
+        appendedBytes += entrySize;
+        dirty = true;
+        final var pointer = pointer(active.number, valueOffset, value.remaining());
+        if (activeSize >= fileSize) {
+            seal();
+        }
+        return pointer;
+    }
+
+    /**
+     * Forces appended values to the storage device, tables pointing to them must not be listed before.
+     */
+    synchronized void force() throws IOException {
+        if (writer != null && dirty) {
+            writer.force(false);
+        }
+        dirty = false;
+    }
+
+    /**
+     * Finishes the active file, the next value starts a new one.
+     */
+    synchronized void seal() throws IOException {
+        if (writer != null) {
+            force();
+            writer.close();
+            writer = null;
+            active = null;
+        }
+    }
+
+    /**
+     * Current files, which every new table set must hold.
+     */
+    @NotNull
+    synchronized List<ValueFile> getFiles() {
+        return List.copyOf(files);
+    }
+
+    /**
+     * Files no longer appended to, oldest first.
+     */
+    @NotNull
+    synchronized List<ValueFile> getSealedFiles() {
+        return files.stream().filter(file -> file != active).collect(Collectors.toList());
+    }
+
+    /**
+     * Drops the file from the log, it is deleted when table sets holding it are released.
+     */
+    synchronized void remove(@NotNull final ValueFile file) {
+        files.remove(file);
+        file.markObsolete();
+    }
+
+    /**
+     * Bytes appended since the last reset. Garbage grows no faster, as each overwrite of a large value
+     * appends the new value.
+     */
+    synchronized long getAppendedBytes() {
+        return appendedBytes;
+    }
+
+    synchronized void resetAppendedBytes() {
+        appendedBytes = 0;
+    }
+
+    /**
+     * Reads keys and locations of values of the file. A torn entry at the end is ignored.
+     */
+    @NotNull
+    static List<Entry> entries(@NotNull final ValueFile file) throws IOException {
+        final var entries = new ArrayList<Entry>();
+        final var size = file.size();
+        long offset = 0;
+        while (offset + ENTRY_HEADER <= size) {
+            final var entryHeader = file.read(offset, ENTRY_HEADER);
+            final var keySize = entryHeader.getInt(0);
+            final var valueSize = entryHeader.getInt(Integer.BYTES);
+            final var valueOffset = offset + ENTRY_HEADER + keySize;
+            if (keySize < 0 || valueSize < 0 || valueOffset + valueSize > size) {
+                break;
+            }
+            final var key = file.read(offset + ENTRY_HEADER, keySize);
+            entries.add(new Entry(key, pointer(file.number, valueOffset, valueSize)));
+            offset = valueOffset + valueSize;
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        seal();
+    }
+}
@@ -0,0 +1,452 @@
+package ru.mail.polis.s3ponia;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of memtable mutations split into segments.
+ * Record layout: crc(int) sequence(long) keySize(int) valueSize(int, -1 for tombstone) key value.
+ * Batch record layout: crc(int) firstSequence(long) -1(int) payloadSize(int) payload,
+ * where payload holds keySize(int) valueSize(int) key value of each mutation.
+ * Records of concurrent appends are written and forced together by the writer which queued first.
+ */
+final class WriteAheadLog implements Closeable {
+    private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+    static final String LOG_EXTENSION = ".wal";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("\\d+" + Pattern.quote(LOG_EXTENSION));
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES;
+    private static final int TOMBSTONE_SIZE = -1;
+    private static final int BATCH_KEY_SIZE = -1;
+    private static final int ENTRY_HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+
+    private final Path dir;
+    private final FsyncPolicy policy;
+    private final List<Long> recovered;
+    /* Held while records are written to the channel, so it is not rotated or closed under a writer */
+    private final Object writeLock = new Object();
+    private final Object syncLock = new Object();
+    private final ScheduledExecutorService syncer;
+    private final AtomicLong syncCount = new AtomicLong();
+    /* Records waiting to be written, the head one belongs to the writer writing them all, guarded by this */
+    private final Queue<Append> appends = new ArrayDeque<>();
+
+    private FileChannel channel;
+    private long segment;
+    /* Positions are counted across all segments, so they never go back on rotation */
+    private long writtenPosition;
+    private volatile long syncedPosition;
+
+    private WriteAheadLog(@NotNull final Path dir,
+                          @NotNull final FsyncPolicy policy,
+                          final long intervalMs) throws IOException {
+        this.dir = dir;
+        this.policy = policy;
+        try (Stream<Path> files = Files.list(dir)) {
+            this.recovered = files.filter(Files::isRegularFile)
+                    .map(p -> p.getFileName().toString())
+                    .filter(name -> SEGMENT_NAME.matcher(name).matches())
+                    .map(WriteAheadLog::segmentId)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        this.segment = recovered.isEmpty() ? 0 : recovered.get(recovered.size() - 1);
+        this.channel = openSegment(++segment);
+        if (policy == FsyncPolicy.PERIODIC) {
+            syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final var thread = new Thread(r, "wal-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            syncer.scheduleWithFixedDelay(this::syncQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        } else {
+            syncer = null;
+        }
+    }
+
+    static WriteAheadLog open(@NotNull final Path dir,
+                              @NotNull final FsyncPolicy policy,
+                              final long intervalMs) throws IOException {
+        return new WriteAheadLog(dir, policy, intervalMs);
+    }
+
+    private static long segmentId(@NotNull final String fileName) {
+        return Long.parseLong(fileName.substring(0, fileName.length() - LOG_EXTENSION.length()));
+    }
+
+    private Path segmentPath(final long id) {
+        return dir.resolve(id + LOG_EXTENSION);
+    }
+
+    private FileChannel openSegment(final long id) throws IOException {
+        return FileChannel.open(segmentPath(id), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Reads segments left by previous run into given table.
+     *
+     * @param table - table to fill
+     * @return id of the last recovered segment, that should be released after table is saved
+     */
+    long replay(@NotNull final MemTable table) throws IOException {
+        for (final var id : recovered) {
+            replaySegment(segmentPath(id), table);
+        }
+        return segment - 1;
+    }
+
+    private void replaySegment(@NotNull final Path path, @NotNull final MemTable table) throws IOException {
+        final ByteBuffer content;
+        try (var reader = FileChannel.open(path, StandardOpenOption.READ)) {
+            content = ByteBuffer.allocate((int) reader.size());
+            while (content.hasRemaining() && reader.read(content) >= 0) {
+                // Read whole segment
+            }
+        }
+        content.flip();
+        final var checksum = new CRC32();
+        while (content.remaining() >= HEADER_SIZE) {
+            final var start = content.position();
+            final var expectedCrc = content.getInt();
+            final var sequence = content.getLong();
+            final var keySize = content.getInt();
+            final var valueSize = content.getInt();
+            final var batch = keySize == BATCH_KEY_SIZE;
+            final var payloadSize = batch ? valueSize : (long) keySize + Math.max(valueSize, 0);
+            if ((!batch && keySize < 0) || valueSize < TOMBSTONE_SIZE || payloadSize > content.remaining()) {
+                logger.warning("Torn record at " + start + " in " + path);
+                return;
+            }
+            checksum.reset();
+            checksum.update(content.duplicate().position(start + Integer.BYTES).limit(start + HEADER_SIZE));
+            final var payload = content.slice().limit((int) payloadSize);
+            content.position(content.position() + payload.limit());
+            checksum.update(payload.duplicate());
+            if ((int) checksum.getValue() != expectedCrc) {
+                logger.warning("Corrupted record at " + start + " in " + path);
+                return;
+            }
+            if (batch) {
+                replayBatch(payload, sequence, table);
+            } else {
+                apply(payload, keySize, valueSize, sequence, table);
+            }
+        }
+    }
+
+    private static void apply(@NotNull final ByteBuffer payload,
+                              final int keySize,
+                              final int valueSize,
+                              final long sequence,
+                              @NotNull final MemTable table) {
+        final var key = payload.slice().limit(keySize);
+        payload.position(payload.position() + keySize);
+        final var value = payload.slice().limit(Math.max(valueSize, 0));
+        payload.position(payload.position() + value.limit());
+        final var record = Table.Value.of(value, sequence, table.getGeneration());
+        table.upsert(key, valueSize == TOMBSTONE_SIZE ? record.setDeadFlag() : record);
+    }
+
+    private static void replayBatch(@NotNull final ByteBuffer payload,
+                                    final long firstSequence,
+                                    @NotNull final MemTable table) {
+        var sequence = firstSequence;
+        while (payload.hasRemaining()) {
+            final var keySize = payload.getInt();
+            final var valueSize = payload.getInt();
+            apply(payload, keySize, valueSize, sequence++, table);
+        }
+    }
+
+    /**
+     * Record handed over to the writer at the head of the queue.
+     */
+    private static final class Append {
+        private final ByteBuffer[] buffers;
+        /* Set under lock of the log once the record is written */
+        private boolean done;
+        private IOException failure;
+
+        Append(@NotNull final ByteBuffer... buffers) {
+            this.buffers = buffers;
+        }
+    }
+
+    /**
+     * Appends mutation to the log. Returns when the record is as durable as the policy requires.
+     *
+     * @param key   - mutated key
+     * @param value - new value or tombstone
+     */
+    void append(@NotNull final ByteBuffer key, @NotNull final Table.Value value) throws IOException {
+        final var keyBuffer = key.duplicate();
+        final var valueBuffer = value.getValue();
+        final var valueSize = value.isDead() ? TOMBSTONE_SIZE : valueBuffer.remaining();
+        append(value.getSequence(), keyBuffer.remaining(), valueSize, keyBuffer, valueBuffer);
+    }
+
+    /**
+     * Appends mutations as one record, so replay applies either all or none of them.
+     *
+     * @param keys   - mutated keys
+     * @param values - new values or tombstones with consecutive sequence numbers
+     */
+    void append(@NotNull final List<ByteBuffer> keys, @NotNull final List<Table.Value> values) throws IOException {
+        long payloadSize = 0;
+        for (int i = 0; i < keys.size(); i++) {
+            payloadSize += ENTRY_HEADER_SIZE + keys.get(i).remaining() + values.get(i).getValue().remaining();
+        }
+        if (payloadSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Batch of " + payloadSize + " bytes is too large");
+        }
+        final var payload = ByteBuffer.allocate((int) payloadSize);
+        for (int i = 0; i < keys.size(); i++) {
+            final var value = values.get(i);
+            final var valueBuffer = value.getValue();
+            payload.putInt(keys.get(i).remaining())
+                    .putInt(value.isDead() ? TOMBSTONE_SIZE : valueBuffer.remaining())
+                    .put(keys.get(i).duplicate())
+                    .put(valueBuffer);
+        }
+        append(values.get(0).getSequence(), BATCH_KEY_SIZE, payload.flip().remaining(), payload);
+    }
+
+    private void append(final long sequence,
+                        final int keySize,
+                        final int valueSize,
+                        @NotNull final ByteBuffer... payload) throws IOException {
+        final var header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(0).putLong(sequence).putInt(keySize).putInt(valueSize);
+        final var crc = new CRC32();
+        crc.update(header.flip().position(Integer.BYTES));
+        for (final var buffer : payload) {
+            crc.update(buffer.duplicate());
+        }
+        header.putInt(0, (int) crc.getValue()).rewind();
+
+        final var record = new ByteBuffer[payload.length + 1];
+        record[0] = header;
+        System.arraycopy(payload, 0, record, 1, payload.length);
+        write(new Append(record));
+    }
+
+    /**
+     * Queues the record and waits until it is written.
+     * A writer finding its record at the head of the queue writes all queued records
+     * with one gathering write and one force, the others wait for it.
+     * Channel I/O of an interrupted thread closes the channel for every writer,
+     * so interrupt status is cleared until the record is written and restored afterwards.
+     */
+    private void write(@NotNull final Append append) throws IOException {
+        var interrupted = Thread.interrupted();
+        try {
+            final List<Append> group;
+            synchronized (this) {
+                appends.add(append);
+                while (!append.done && appends.peek() != append) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // The record is written by another writer anyway
+                        interrupted = true;
+                    }
+                }
+                if (append.done) {
+                    if (append.failure != null) {
+                        throw new IOException("Write-ahead log append failed", append.failure);
+                    }
+                    return;
+                }
+                group = new ArrayList<>(appends);
+            }
+            writeGroup(group);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void writeGroup(@NotNull final List<Append> group) throws IOException {
+        IOException failure = null;
+        try {
+            final var buffers = new ArrayList<ByteBuffer>();
+            long size = 0;
+            for (final var queued : group) {
+                for (final var buffer : queued.buffers) {
+                    buffers.add(buffer);
+                    size += buffer.remaining();
+                }
+            }
+            final long end;
+            synchronized (writeLock) {
+                final FileChannel current;
+                synchronized (this) {
+                    current = channel;
+                }
+                final var record = buffers.toArray(new ByteBuffer[0]);
+                long written = 0;
+                while (written < size) {
+                    written += current.write(record);
+                }
+                synchronized (this) {
+                    writtenPosition += size;
+                    end = writtenPosition;
+                }
+            }
+            if (policy == FsyncPolicy.PER_WRITE) {
+                sync(end);
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        } catch (RuntimeException e) {
+            failure = new IOException(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                for (final var written : group) {
+                    appends.remove();
+                    written.failure = failure;
+                    written.done = true;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Group commit: the first writer forces everything appended so far,
+     * writers that queued behind it find their records already durable.
+     */
+    private void sync(final long position) throws IOException {
+        if (syncedPosition >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (syncedPosition >= position) {
+                return;
+            }
+            final long target;
+            final FileChannel current;
+            synchronized (this) {
+                target = writtenPosition;
+                current = channel;
+            }
+            current.force(false);
+            syncedPosition = target;
+            syncCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Number of times the log was forced, concurrent writers waiting for one force count once.
+     */
+    long getSyncCount() {
+        return syncCount.get();
+    }
+
+    private void syncQuietly() {
+        try {
+            final long target;
+            synchronized (this) {
+                target = writtenPosition;
+            }
+            sync(target);
+        } catch (IOException e) {
+            logger.warning(e.toString());
+        }
+    }
+
+    /**
+     * Starts a new segment for subsequent appends.
+     *
+     * @return id of the finished segment
+     */
+    long rotate() throws IOException {
+        // Force of an interrupted thread would close the segment before the next one is opened
+        final var interrupted = Thread.interrupted();
+        try {
+            synchronized (writeLock) {
+                synchronized (syncLock) {
+                    synchronized (this) {
+                        if (policy != FsyncPolicy.ON_FLUSH) {
+                            channel.force(false);
+                            syncCount.incrementAndGet();
+                        }
+                        channel.close();
+                        syncedPosition = writtenPosition;
+                        channel = openSegment(++segment);
+                        return segment - 1;
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Deletes segments which records are already saved to disk tables.
+     *
+     * @param upTo - id of the last segment to delete (inclusive)
+     */
+    void release(final long upTo) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            final var released = files.map(p -> p.getFileName().toString())
+                    .filter(name -> SEGMENT_NAME.matcher(name).matches())
+                    .map(WriteAheadLog::segmentId)
+                    .filter(id -> id <= upTo)
+                    .collect(Collectors.toList());
+            for (final var id : released) {
+                Files.deleteIfExists(segmentPath(id));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (syncer != null) {
+            // Interrupting a running force would close the channel before the final one
+            syncer.shutdown();
+        }
+        synchronized (writeLock) {
+            synchronized (syncLock) {
+                synchronized (this) {
+                    if (!channel.isOpen()) {
+                        return;
+                    }
+                    final var empty = channel.size() == 0;
+                    if (!empty && policy != FsyncPolicy.ON_FLUSH) {
+                        channel.force(false);
+                    }
+                    channel.close();
+                    if (empty) {
+                        Files.delete(segmentPath(segment));
+                    }
+                }
+            }
+        }
+    }
+}
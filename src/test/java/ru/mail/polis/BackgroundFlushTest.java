@@ -0,0 +1,57 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks that full memtables are flushed without blocking writers or hiding their records.
+ */
+class BackgroundFlushTest extends TestBase {
+    /* Records take over a kilobyte each, so these fill memtable twice */
+    private static final int RECORDS = (int) (2 * MEMORY / 1024);
+
+    private static int logSegments(final File data) {
+        final File[] segments = data.listFiles((dir, name) -> name.endsWith(".wal"));
+        return segments == null ? 0 : segments.length;
+    }
+
+    @Test
+    void writesVisibleWhileFlushing(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY)) {
+            // Log is rotated when memtable is frozen, its segment is deleted once the table is flushed
+            int segments = logSegments(data);
+            for (int i = 0; i < RECORDS && segments < 2; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+                segments = logSegments(data);
+            }
+            // The writer which filled the table has not waited for it to reach disk,
+            // the flush may finish any time after, so the directory is not listed again
+            assertEquals(2, segments);
+            assertContents(expected, dao);
+
+            // New writes go to a fresh table meanwhile
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+            expected.put(key, value);
+            assertContents(expected, dao);
+        }
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            assertContents(expected, dao);
+        }
+    }
+}
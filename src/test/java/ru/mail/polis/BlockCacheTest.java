@@ -0,0 +1,206 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.BlockCache;
+import ru.mail.polis.s3ponia.Compression;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that compressed blocks are read through the shared block cache and uncompressed ones bypass it,
+ * and counts blocks point lookups read.
+ */
+class BlockCacheTest extends TestBase {
+    private static final int CACHE_SIZE = 64 * 1024;
+    private static final int PADDING = 1024;
+    private static final Config COMPRESSED = Config.builder().compression(Compression.DEFLATE).build();
+
+    /* Random prefix padded with zeros, so blocks shrink when compressed */
+    private static ByteBuffer compressibleValue() {
+        return join(randomBuffer(Long.BYTES), ByteBuffer.allocate(PADDING));
+    }
+
+    private static void fill(final File data, final List<ByteBuffer> keys, final List<ByteBuffer> values)
+            throws IOException {
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, COMPRESSED)) {
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = compressibleValue();
+                dao.upsert(key, value);
+                keys.add(key);
+                values.add(value);
+            }
+        }
+    }
+
+    @Test
+    void repeatedReadsHit(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<ByteBuffer> values = new ArrayList<>();
+        fill(data, keys, values);
+
+        final Config config = Config.builder().compression(Compression.DEFLATE).blockCacheSize(CACHE_SIZE).build();
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            final BlockCache cache = dao.getBlockCache();
+            assertEquals(values.get(0), dao.get(keys.get(0)));
+            final long misses = cache.getMissCount();
+            assertEquals(values.get(0), dao.get(keys.get(0)));
+            assertEquals(misses, cache.getMissCount());
+            assertTrue(cache.getHitCount() > 0);
+
+            // Touching every block keeps the cache within its budget
+            for (int i = 0; i < keys.size(); i++) {
+                assertEquals(values.get(i), dao.get(keys.get(i)));
+            }
+            assertTrue(cache.sizeInBytes() <= CACHE_SIZE);
+        }
+    }
+
+    @Test
+    void offHeap(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<ByteBuffer> values = new ArrayList<>();
+        fill(data, keys, values);
+
+        final Config config = Config.builder().compression(Compression.DEFLATE).offHeapBlockCache(true).build();
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < keys.size(); i++) {
+                    assertEquals(values.get(i), dao.get(keys.get(i)));
+                }
+            }
+            assertTrue(dao.getBlockCache().getHitCount() >= keys.size());
+        }
+    }
+
+    @Test
+    void uncompressedBlocksNotCached(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<ByteBuffer> values = new ArrayList<>();
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            for (int i = 0; i < 1000; i++) {
+                keys.add(randomKey());
+                values.add(randomValue());
+                dao.upsert(keys.get(i), values.get(i));
+            }
+        }
+
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY)) {
+            for (int i = 0; i < keys.size(); i++) {
+                assertEquals(values.get(i), dao.get(keys.get(i)));
+            }
+            final BlockCache cache = dao.getBlockCache();
+            assertTrue(cache.getMappedReadCount() >= keys.size());
+            assertEquals(0, cache.getHitCount() + cache.getMissCount());
+            assertEquals(0, cache.sizeInBytes());
+        }
+    }
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key-%06d", index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long blockReads(final BlockCache cache) {
+        return cache.getHitCount() + cache.getMissCount() + cache.getMappedReadCount();
+    }
+
+    @Test
+    void lookupReadsSingleBlock(@TempDir File data) throws IOException {
+        final int records = 2000;
+        final Config config = Config.builder().blockSize(256).build();
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            for (int i = 0; i < records; i++) {
+                dao.upsert(key(i), randomBuffer(1 + i % 64));
+            }
+        }
+        assertEquals(1, tableCount(data));
+
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            final BlockCache cache = dao.getBlockCache();
+            for (int i = 0; i < records; i++) {
+                final ByteBuffer key = key(i);
+                // Index of block first keys points at the only block to scan
+                long reads = blockReads(cache);
+                dao.get(key);
+                assertEquals(reads + 1, blockReads(cache));
+
+                reads = blockReads(cache);
+                final ByteBuffer missing = join(key, ByteBuffer.wrap(new byte[]{0}));
+                assertThrows(NoSuchElementException.class, () -> dao.get(missing));
+                assertTrue(blockReads(cache) <= reads + 1);
+            }
+            // Many blocks have been read, so the table is not a single block
+            assertTrue(cache.getMappedReadCount() > records / 64);
+        }
+    }
+
+    /**
+     * Writes tables with given config and looks up random keys,
+     * which fall within key ranges of all tables but are missing.
+     *
+     * @return number of blocks read
+     */
+    private static long missingLookups(final File data, final Config config) throws IOException {
+        final int tables = 3;
+        // Each session leaves a table of its own
+        for (int table = 0; table < tables; table++) {
+            try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+                for (int i = 0; i < 1000; i++) {
+                    dao.upsert(randomKey(), randomValue());
+                }
+            }
+        }
+        assertEquals(tables, tableCount(data));
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            final long before = blockReads(dao.getBlockCache());
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer key = randomKey();
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+            return blockReads(dao.getBlockCache()) - before;
+        }
+    }
+
+    @Test
+    void missingKeysSkipFilteredTables(@TempDir File data) throws IOException {
+        final File filtered = new File(data, "filtered");
+        final File unfiltered = new File(data, "unfiltered");
+        assertTrue(filtered.mkdir() && unfiltered.mkdir());
+
+        // Without filters each of 3 tables reads a block to find out the key is missing
+        assertTrue(missingLookups(unfiltered, Config.builder().bloomBitsPerKey(0).build()) > 1000 * 2);
+        // 10 bits per key give about 1% false positives
+        assertTrue(missingLookups(filtered, Config.defaults()) < 1000 * 3 / 20);
+    }
+
+    @Test
+    void tombstoneStopsLookup(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        fill(data, keys, new ArrayList<>());
+        final ByteBuffer removed = keys.get(0);
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            dao.remove(removed);
+        }
+        assertEquals(2, tableCount(data));
+
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY)) {
+            // Older table holding a value of the key is not read
+            final long reads = blockReads(dao.getBlockCache());
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            assertEquals(reads + 1, blockReads(dao.getBlockCache()));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks lookups and seeks over tables split into many small blocks.
+ */
+class BlockTableTest extends TestBase {
+    private static final int RECORDS = 2000;
+    /* Small blocks put block boundaries everywhere */
+    private static final Config CONFIG = Config.builder().blockSize(256).build();
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key-%06d", index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Key between the key of the index and the next one.
+     */
+    private static ByteBuffer after(final int index) {
+        return join(key(index), ByteBuffer.wrap(new byte[]{0}));
+    }
+
+    private static SortedMap<ByteBuffer, ByteBuffer> fill(final File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, CONFIG)) {
+            for (int i = 0; i < RECORDS; i++) {
+                final ByteBuffer value = randomBuffer(1 + i % 64);
+                dao.upsert(key(i), value);
+                records.put(key(i), value);
+            }
+        }
+        assertEquals(1, tableCount(data));
+        return records;
+    }
+
+    @Test
+    void lookupsWithinBlocks(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> records = fill(data);
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, CONFIG)) {
+            // Index of block first keys points at the block to scan, whether the key is there or not
+            for (int i = 0; i < RECORDS; i++) {
+                assertEquals(records.get(key(i)), dao.get(key(i)));
+                final ByteBuffer missing = after(i);
+                assertThrows(NoSuchElementException.class, () -> dao.get(missing));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(ByteBuffer.wrap(new byte[]{0})));
+        }
+    }
+
+    @Test
+    void seeksAcrossBlocks(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> records = fill(data);
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, CONFIG)) {
+            // Every key is a first key of some block or lies within one
+            for (int i = 0; i < RECORDS; i++) {
+                final int to = Math.min(RECORDS, i + 5);
+                assertRecords(records.subMap(key(i), key(to)), dao.range(key(i), key(to)));
+                assertRecords(records.subMap(after(i), key(to)), dao.range(after(i), key(to)));
+            }
+
+            final Iterator<Record> tail = dao.iterator(key(RECORDS - 1));
+            assertEquals(key(RECORDS - 1), tail.next().getKey());
+            assertFalse(tail.hasNext());
+            assertFalse(dao.iterator(after(RECORDS - 1)).hasNext());
+
+            assertRecords(records, dao.iterator(ByteBuffer.allocate(0)));
+        }
+    }
+
+    @Test
+    void malformedTableFailsOpen(@TempDir File data) throws IOException {
+        fill(data);
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        try (FileChannel channel = FileChannel.open(tables[0].toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() / 2);
+        }
+        final long size = tables[0].length();
+
+        // The table is not replaced by an empty one, so compaction can not drop its file
+        assertThrows(IOException.class, () -> PersistenceDAO.of(data, MEMORY, CONFIG));
+        assertTrue(tables[0].exists());
+        assertEquals(size, tables[0].length());
+    }
+}
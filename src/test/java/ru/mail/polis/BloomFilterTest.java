@@ -0,0 +1,95 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that tables written with and without Bloom filters answer lookups the same way.
+ */
+class BloomFilterTest extends TestBase {
+    private static final int TABLES = 3;
+    private static final int RECORDS_PER_TABLE = 1000;
+    private static final int BITS_PER_KEY = 10;
+    private static final Config UNFILTERED = Config.builder().bloomBitsPerKey(0).build();
+
+    private static SortedMap<ByteBuffer, ByteBuffer> records() {
+        final SortedMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        for (int i = 0; i < TABLES * RECORDS_PER_TABLE; i++) {
+            records.put(randomKey(), randomValue());
+        }
+        return records;
+    }
+
+    private static void fill(
+            final File data,
+            final Config config,
+            final SortedMap<ByteBuffer, ByteBuffer> records) throws IOException {
+        final Iterator<Map.Entry<ByteBuffer, ByteBuffer>> entries = records.entrySet().iterator();
+        // Each session leaves a table of its own
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+                for (int i = 0; i < RECORDS_PER_TABLE; i++) {
+                    final Map.Entry<ByteBuffer, ByteBuffer> entry = entries.next();
+                    dao.upsert(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private static long tablesSize(final File data) {
+        long size = 0;
+        for (final File table : data.listFiles((dir, name) -> name.endsWith(".db"))) {
+            size += table.length();
+        }
+        return size;
+    }
+
+    private static void assertLookups(
+            final File data,
+            final Config config,
+            final SortedMap<ByteBuffer, ByteBuffer> records) throws IOException {
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            assertContents(records, dao);
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer key = randomKey();
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+    }
+
+    @Test
+    void filtersKeepLookupsIntact(@TempDir File data) throws IOException {
+        final File filtered = new File(data, "filtered");
+        final File unfiltered = new File(data, "unfiltered");
+        assertTrue(filtered.mkdir() && unfiltered.mkdir());
+        final SortedMap<ByteBuffer, ByteBuffer> records = records();
+        fill(filtered, Config.builder().bloomBitsPerKey(BITS_PER_KEY).build(), records);
+        fill(unfiltered, UNFILTERED, records);
+        assertEquals(TABLES, tableCount(filtered));
+        assertEquals(TABLES, tableCount(unfiltered));
+
+        // Filter bits rounded up to whole words and a trailer are appended to each table
+        final long filterBytes = tablesSize(filtered) - tablesSize(unfiltered);
+        final long bitBytes = (long) records.size() * BITS_PER_KEY / Byte.SIZE;
+        assertTrue(filterBytes >= bitBytes, "Filters take " + filterBytes + " bytes");
+        assertTrue(filterBytes < bitBytes + TABLES * 64, "Filters take " + filterBytes + " bytes");
+
+        assertLookups(filtered, Config.defaults(), records);
+        assertLookups(unfiltered, UNFILTERED, records);
+    }
+}
@@ -0,0 +1,92 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.BlockCache;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks range scans which stop reading tables at the upper key.
+ */
+class BoundedRangeTest extends TestBase {
+    private static ByteBuffer key(final int table, final int record) {
+        return ByteBuffer.wrap(String.format("table-%02d/record-%06d", table, record)
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void matchesSortedMap(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Config config = Config.builder().blockSize(512).build();
+        try (DAO dao = PersistenceDAO.of(data, 8 * 1024 * 1024, config)) {
+            for (int i = 0; i < 12_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            final List<ByteBuffer> keys = new ArrayList<>(expected.keySet());
+            for (int i = 0; i < keys.size(); i += 3) {
+                dao.remove(keys.get(i));
+                expected.remove(keys.get(i));
+            }
+        }
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            final List<ByteBuffer> keys = new ArrayList<>(expected.keySet());
+            final ByteBuffer from = keys.get(keys.size() / 3);
+            final ByteBuffer to = keys.get(keys.size() / 2);
+            assertRecords(expected.subMap(from, true, to, false), dao.range(from, to));
+            assertRecords(expected.tailMap(from, true), dao.range(from, null));
+            // Bounds between stored keys
+            final ByteBuffer missing = randomKey();
+            assertRecords(expected.tailMap(missing, true), dao.range(missing, null));
+            assertRecords(expected.headMap(missing, false), dao.range(ByteBuffer.allocate(0), missing));
+            assertFalse(dao.range(to, from).hasNext());
+            assertFalse(dao.range(from, from).hasNext());
+        }
+    }
+
+    @Test
+    void tablesPastBoundNotRead(@TempDir File data) throws IOException {
+        // Each session leaves a table of its own key range, too few tables to be compacted
+        final int tables = 3;
+        for (int table = 0; table < tables; table++) {
+            try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+                for (int record = 0; record < 10_000; record++) {
+                    dao.upsert(key(table, record), key(table, record));
+                }
+            }
+        }
+
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY)) {
+            final BlockCache cache = dao.getBlockCache();
+            final Iterator<Record> records = dao.range(key(1, 500), key(1, 510));
+            for (int record = 500; record < 510; record++) {
+                assertEquals(key(1, record), records.next().getKey());
+            }
+            assertFalse(records.hasNext());
+            // The records take one block or two, other tables and following blocks are untouched
+            assertTrue(cache.getMappedReadCount() <= 2);
+
+            final long reads = cache.getMappedReadCount();
+            assertFalse(dao.range(key(tables, 0), null).hasNext());
+            assertFalse(dao.range(ByteBuffer.allocate(0), key(0, 0)).hasNext());
+            assertEquals(reads, cache.getMappedReadCount());
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.CompactionStyle;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks compactions started by tombstones and overlapping tables rather than by table sizes.
+ */
+class CompactionTriggersTest extends TestBase {
+    private static final long TIMEOUT_MS = 30_000;
+
+    private static void awaitCompaction(final PersistenceDAO dao) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (dao.getCompactionStats().getCompactionCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(dao.getCompactionStats().getCompactionCount() > 0);
+    }
+
+    @Test
+    void tombstonesDropped(@TempDir File data) throws IOException, InterruptedException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<ByteBuffer> values = new ArrayList<>();
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            for (int i = 0; i < 4096; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                keys.add(key);
+                values.add(value);
+            }
+        }
+        final long full = Files.directorySize(data);
+        // Two flushed tables are too few for level 0 to be compacted by count
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            for (int i = 0; i < keys.size(); i++) {
+                if (i % 4 != 0) {
+                    dao.remove(keys.get(i));
+                }
+            }
+        }
+
+        // Compaction starts once tombstones are flushed on close, or after reopening if close stops it first
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (tableCount(data) > 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, tableCount(data));
+
+            for (int i = 0; i < keys.size(); i++) {
+                final ByteBuffer key = keys.get(i);
+                if (i % 4 == 0) {
+                    assertEquals(values.get(i), dao.get(key));
+                } else {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                }
+            }
+        }
+        assertTrue(Files.directorySize(data) < full / 2);
+    }
+
+    @Test
+    void overlappingTablesMerged(@TempDir File data) throws IOException, InterruptedException {
+        // Similar tables are never merged, so compaction comes from overlapping key ranges only
+        final Config config = Config.builder()
+                .compactionStyle(CompactionStyle.SIZE_TIERED)
+                .sizeTieredThresholds(32, 32)
+                .maxOverlappingTables(2)
+                .build();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            keys.add(randomKey());
+        }
+        ByteBuffer value = null;
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            for (int round = 0; round < 8; round++) {
+                value = randomBuffer(1024 * 1024);
+                for (final ByteBuffer key : keys) {
+                    dao.upsert(key, join(key, value));
+                }
+            }
+            awaitCompaction(dao);
+        }
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            for (final ByteBuffer key : keys) {
+                assertEquals(join(key, value), dao.get(key));
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.BlockCache;
+import ru.mail.polis.s3ponia.CompactionStats;
+import ru.mail.polis.s3ponia.Compression;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks tables with compressed blocks.
+ */
+class CompressionTest extends TestBase {
+    private static final Config DEFLATE = Config.builder().compression(Compression.DEFLATE).build();
+
+    private static ByteBuffer document(final int id) {
+        final String json = String.format(
+                "{\"id\":%d,\"type\":\"track\",\"title\":\"Track number %d\",\"tags\":[\"rock\",\"live\"],"
+                        + "\"duration\":%d,\"explicit\":false,\"album\":{\"id\":%d,\"title\":\"Album %d\"}}",
+                id, id, 180 + id % 120, id / 10, id / 10);
+        return ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static SortedMap<ByteBuffer, ByteBuffer> fill(final File data, final Config config, final int from)
+            throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            for (int i = from; i < from + 5000; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, document(i));
+                records.put(key, document(i));
+            }
+        }
+        return records;
+    }
+
+    @Test
+    void compressibleValuesShrink(@TempDir File data) throws IOException {
+        final File raw = new File(data, "raw");
+        final File compressed = new File(data, "compressed");
+        assertTrue(raw.mkdir() && compressed.mkdir());
+        fill(raw, Config.defaults(), 0);
+        final SortedMap<ByteBuffer, ByteBuffer> records = fill(compressed, DEFLATE, 0);
+
+        assertTrue(Files.directorySize(compressed) < Files.directorySize(raw) / 2);
+        try (PersistenceDAO dao = PersistenceDAO.of(compressed, MEMORY, DEFLATE)) {
+            assertContents(records, dao);
+            final BlockCache cache = dao.getBlockCache();
+            assertTrue(cache.getDecodeCount() > 0);
+            assertTrue(cache.getDecodeNanos() > 0);
+
+            // Cached blocks are not decoded again
+            final long decodes = cache.getDecodeCount();
+            final ByteBuffer key = records.keySet().iterator().next();
+            dao.get(key);
+            dao.get(key);
+            assertTrue(cache.getDecodeCount() <= decodes + 1);
+        }
+    }
+
+    @Test
+    void compressionRatioCounted(@TempDir File data) throws IOException {
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, DEFLATE)) {
+            for (int i = 0; i < 5000; i++) {
+                dao.upsert(randomKey(), document(i));
+            }
+            dao.compact();
+            assertTrue(dao.getCompactionStats().getCompressionRatio() > 2);
+            assertTrue(dao.getCompactionStats().getStoredBlockBytes() > 0);
+        }
+    }
+
+    @Test
+    void incompressibleBlocksStoredRaw(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, DEFLATE)) {
+            for (int i = 0; i < 5000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                records.put(key, value);
+            }
+            dao.compact();
+            // Random blocks are stored as they are, after their raw sizes
+            final CompactionStats stats = dao.getCompactionStats();
+            assertTrue(stats.getStoredBlockBytes() > stats.getRawBlockBytes());
+            assertTrue(stats.getStoredBlockBytes() < stats.getRawBlockBytes() * 101 / 100);
+        }
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, DEFLATE)) {
+            assertContents(records, dao);
+        }
+    }
+
+    @Test
+    void uncachedAndMixedTables(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> records = fill(data, Config.defaults(), 0);
+        records.putAll(fill(data, DEFLATE, 5000));
+
+        final Config uncached = Config.builder().compression(Compression.DEFLATE).blockCacheSize(0).build();
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, uncached)) {
+            assertContents(records, dao);
+            dao.compact();
+            assertContents(records, dao);
+        }
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            assertContents(records, dao);
+        }
+    }
+}
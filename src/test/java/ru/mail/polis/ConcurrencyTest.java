@@ -0,0 +1,127 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.FsyncPolicy;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Concurrent writers and readers over a single {@link DAO}.
+ */
+class ConcurrencyTest extends TestBase {
+    private static final int THREADS = 8;
+    private static final int RECORDS_PER_THREAD = 2_000;
+
+    @NotNull
+    private static ByteBuffer key(final int thread, final int record) {
+        final ByteBuffer key = ByteBuffer.allocate(Integer.BYTES * 2);
+        key.putInt(thread).putInt(record).rewind();
+        return key;
+    }
+
+    @Test
+    void parallelWrites(@TempDir File data) throws Exception {
+        final ByteBuffer value = randomValue();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try (DAO dao = DAOFactory.create(data)) {
+            final Collection<Callable<Void>> writers = new ArrayList<>(THREADS);
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                writers.add(() -> {
+                    for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                        dao.upsert(key(thread, i), value);
+                        // Readers race with writers and background flushes
+                        if (i % 100 == 0) {
+                            assertEquals(value, dao.get(key(thread, i)));
+                        }
+                    }
+                    return null;
+                });
+            }
+            waitAll(executor.invokeAll(writers));
+
+            final Iterator<Record> all = dao.iterator(ByteBuffer.allocate(0));
+            int count = 0;
+            while (all.hasNext()) {
+                assertEquals(value, all.next().getValue());
+                count++;
+            }
+            assertEquals(THREADS * RECORDS_PER_THREAD, count);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Everything reaches disk
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int t = 0; t < THREADS; t++) {
+                for (int i = 0; i < RECORDS_PER_THREAD; i++) {
+                    assertEquals(value, dao.get(key(t, i)));
+                }
+            }
+        }
+    }
+
+    @Test
+    void concurrentWritesShareLogForces(@TempDir File data) throws Exception {
+        final int records = 500;
+        final ByteBuffer value = randomValue();
+        final Config config = Config.builder().fsyncPolicy(FsyncPolicy.PER_WRITE).build();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            final Collection<Callable<Void>> writers = new ArrayList<>(THREADS);
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                writers.add(() -> {
+                    for (int i = 0; i < records; i++) {
+                        dao.upsert(key(thread, i), value);
+                    }
+                    return null;
+                });
+            }
+            waitAll(executor.invokeAll(writers));
+
+            // Writers queued behind a force are written and forced together with it
+            final long syncs = dao.getLogSyncCount();
+            assertTrue(syncs > 0);
+            assertTrue(syncs < THREADS * records, "Log forced " + syncs + " times");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int t = 0; t < THREADS; t++) {
+                for (int i = 0; i < records; i++) {
+                    assertEquals(value, dao.get(key(t, i)));
+                }
+            }
+        }
+    }
+
+    private static void waitAll(final List<Future<Void>> futures) throws IOException, InterruptedException {
+        for (final Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.Compression;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.DAOImpl;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+import ru.mail.polis.s3ponia.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Checks descending iteration over memtables and disk tables against a sorted map.
+ */
+class DescendingRangeTest extends TestBase {
+    private static NavigableMap<ByteBuffer, ByteBuffer> fill(final DAO dao) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 12_000; i++) {
+            final ByteBuffer key = randomKey();
+            final ByteBuffer value = randomValue();
+            dao.upsert(key, value);
+            expected.put(key, value);
+            keys.add(key);
+        }
+        // Newer tables shadow older ones
+        for (int i = 0; i < keys.size(); i += 7) {
+            final ByteBuffer value = randomValue();
+            dao.upsert(keys.get(i), value);
+            expected.put(keys.get(i), value);
+        }
+        for (int i = 3; i < keys.size(); i += 5) {
+            dao.remove(keys.get(i));
+            expected.remove(keys.get(i));
+        }
+        return expected;
+    }
+
+    private static void assertRanges(final NavigableMap<ByteBuffer, ByteBuffer> expected, final DAO dao)
+            throws IOException {
+        final ByteBuffer empty = ByteBuffer.allocate(0);
+        assertRecords(expected.descendingMap(), dao.descendingRange(empty, null));
+
+        final List<ByteBuffer> keys = new ArrayList<>(expected.keySet());
+        final ByteBuffer from = keys.get(keys.size() / 4);
+        final ByteBuffer to = keys.get(keys.size() / 2);
+        assertRecords(expected.subMap(from, true, to, false).descendingMap(), dao.descendingRange(from, to));
+        // Bounds between stored keys
+        final ByteBuffer missing = randomKey();
+        assertRecords(expected.headMap(missing, false).descendingMap(), dao.descendingRange(empty, missing));
+        assertRecords(expected.tailMap(missing, true).descendingMap(), dao.descendingRange(missing, null));
+
+        assertFalse(dao.descendingRange(to, from).hasNext());
+        assertFalse(dao.descendingRange(from, from).hasNext());
+    }
+
+    @Test
+    void matchesSortedMap(@TempDir File data) throws IOException {
+        // Small blocks and odd interval put restarts and block boundaries everywhere
+        final Config config = Config.builder().blockSize(512).blockRestartInterval(3).build();
+        final NavigableMap<ByteBuffer, ByteBuffer> expected;
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            expected = fill(dao);
+            assertRanges(expected, dao);
+        }
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            assertRanges(expected, dao);
+            dao.compact();
+            assertRanges(expected, dao);
+        }
+    }
+
+    @Test
+    void offHeapMemTables(@TempDir File data) throws IOException {
+        final Config config = Config.builder().offHeapMemTable(true).compression(Compression.DEFLATE).build();
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            assertRanges(fill(dao), dao);
+        }
+    }
+
+    @Test
+    void topRecords(@TempDir File data) throws IOException {
+        final ByteBuffer empty = ByteBuffer.allocate(0);
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY)) {
+            final NavigableMap<ByteBuffer, ByteBuffer> expected = fill(dao);
+            final List<ByteBuffer> top = new ArrayList<>(expected.descendingKeySet()).subList(0, 10);
+            try (Snapshot snapshot = dao.snapshot()) {
+                for (final ByteBuffer key : top) {
+                    dao.remove(key);
+                }
+                // Records removed after the snapshot was taken are still there
+                final Iterator<Record> records = snapshot.descendingRange(empty, null);
+                for (final ByteBuffer key : top) {
+                    assertEquals(key, records.next().getKey());
+                }
+            }
+            final Iterator<Record> records = dao.descendingRange(empty, null);
+            assertEquals(expected.lowerKey(top.get(top.size() - 1)), records.next().getKey());
+        }
+    }
+
+    @Test
+    void defaultImplementation() throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected;
+        try (DAO dao = new DAOImpl()) {
+            expected = fill(dao);
+            assertRanges(expected, dao);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that tables written before the block format stay readable.
+ * Legacy tables are written by hand in their layout, null values stand for tombstones.
+ */
+class FormatCompatibilityTest extends TestBase {
+    private static final long DEAD_FLAG = 0x4000000000000000L;
+    private static final long FORMAT_MAGIC = 0xDB10C4ED5574B1E5L;
+    private static final int CURRENT_VERSION = 1;
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key-%04d", index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static ByteBuffer value(final String table, final int index) {
+        return ByteBuffer.wrap((table + '-' + index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long stamp(final long stamp, final ByteBuffer value) {
+        return value == null ? stamp | DEAD_FLAG : stamp;
+    }
+
+    private static int size(final ByteBuffer value) {
+        return value == null ? 0 : value.remaining();
+    }
+
+    /**
+     * Writes table in the original layout: records deadFlagTimeStamp(long) keySize(int) key value,
+     * then int offsets of records and records count.
+     */
+    private static void writeLegacyTable(
+            @NotNull final Path file,
+            @NotNull final SortedMap<ByteBuffer, ByteBuffer> records) throws IOException {
+        int size = Integer.BYTES;
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : records.entrySet()) {
+            size += Long.BYTES + Integer.BYTES + entry.getKey().remaining() + size(entry.getValue()) + Integer.BYTES;
+        }
+        final ByteBuffer table = ByteBuffer.allocate(size);
+        final int[] offsets = new int[records.size()];
+        int index = 0;
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : records.entrySet()) {
+            offsets[index++] = table.position();
+            table.putLong(stamp(System.currentTimeMillis(), entry.getValue()))
+                    .putInt(entry.getKey().remaining())
+                    .put(entry.getKey().duplicate());
+            if (entry.getValue() != null) {
+                table.put(entry.getValue().duplicate());
+            }
+        }
+        for (final int offset : offsets) {
+            table.putInt(offset);
+        }
+        table.putInt(records.size());
+        Files.write(file, table.array());
+    }
+
+    /**
+     * Lists table in meta file the way it was done before levels were introduced.
+     */
+    private static void register(@NotNull final File data, @NotNull final Path table) throws IOException {
+        final File[] meta = data.listFiles((dir, name) -> name.endsWith(".mdb"));
+        assertTrue(meta != null && meta.length == 1);
+        Files.write(meta[0].toPath(), (table + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+
+    private static SortedMap<ByteBuffer, ByteBuffer> alive(@NotNull final SortedMap<ByteBuffer, ByteBuffer> records) {
+        final SortedMap<ByteBuffer, ByteBuffer> result = new TreeMap<>(records);
+        result.values().removeIf(value -> value == null);
+        return result;
+    }
+
+    @Test
+    void legacyTableSeeks(@TempDir File data) throws IOException {
+        // Creates empty meta file
+        PersistenceDAO.of(data, MEMORY).close();
+        final SortedMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        for (int i = 0; i < 100; i++) {
+            records.put(key(i * 2), i % 10 == 0 ? null : value("legacy", i * 2));
+        }
+        final Path table = data.toPath().resolve("1.db");
+        writeLegacyTable(table, records);
+        register(data, table);
+        final SortedMap<ByteBuffer, ByteBuffer> expected = alive(records);
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            assertContents(expected, dao);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(3)));
+
+            // Seeks to present and missing keys and before the first one
+            assertRecords(expected.subMap(key(40), key(60)), dao.range(key(40), key(60)));
+            assertRecords(expected.subMap(key(41), key(61)), dao.range(key(41), key(61)));
+            assertRecords(expected.tailMap(key(150)), dao.iterator(key(150)));
+            assertRecords(expected, dao.iterator(ByteBuffer.wrap(new byte[]{0})));
+            assertFalse(dao.iterator(key(1000)).hasNext());
+
+            // Walks backwards over a tombstone
+            final Iterator<Record> descending = dao.descendingRange(key(17), key(25));
+            assertEquals(key(24), descending.next().getKey());
+            assertEquals(key(22), descending.next().getKey());
+            assertEquals(key(18), descending.next().getKey());
+            assertFalse(descending.hasNext());
+
+            // Records written over legacy table win
+            final ByteBuffer value = randomValue();
+            dao.upsert(key(2), value);
+            dao.remove(key(4));
+            assertEquals(value, dao.get(key(2)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(4)));
+        }
+    }
+
+    @Test
+    void legacyAndCurrentTablesCompaction(@TempDir File data) throws IOException {
+        PersistenceDAO.of(data, MEMORY).close();
+        final SortedMap<ByteBuffer, ByteBuffer> legacy = new TreeMap<>();
+        for (int i = 0; i < 100; i++) {
+            legacy.put(key(i), i % 7 == 0 ? null : value("legacy", i));
+        }
+        final Path file = data.toPath().resolve("1.db");
+        writeLegacyTable(file, legacy);
+        register(data, file);
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>(legacy);
+
+        // Newer tables of the current format overwrite and remove some records of the legacy one
+        for (int table = 1; table < 3; table++) {
+            try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+                for (int i = table * 50; i < table * 50 + 100; i++) {
+                    if (i % 7 == table) {
+                        dao.remove(key(i));
+                        expected.put(key(i), null);
+                    } else {
+                        dao.upsert(key(i), value("current" + table, i));
+                        expected.put(key(i), value("current" + table, i));
+                    }
+                }
+            }
+        }
+        assertEquals(3, tableCount(data));
+        final SortedMap<ByteBuffer, ByteBuffer> alive = alive(expected);
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            assertContents(alive, dao);
+            assertRecords(alive.subMap(key(45), key(105)), dao.range(key(45), key(105)));
+            for (final ByteBuffer removed : expected.keySet()) {
+                if (expected.get(removed) == null) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+                }
+            }
+
+            dao.compact();
+            assertContents(alive, dao);
+        }
+
+        // Legacy table is replaced by one of the current format
+        assertEquals(1, tableCount(data));
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        final ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(tables[0].toPath()));
+        assertEquals(FORMAT_MAGIC, header.getLong());
+        assertEquals(CURRENT_VERSION, header.getInt());
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            assertContents(alive, dao);
+            assertRecords(alive.subMap(key(45), key(105)), dao.range(key(45), key(105)));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks compaction running in background while the store is used.
+ */
+class LeveledCompactionTest extends TestBase {
+    private static final Config EAGER = Config.builder()
+            .levelZeroCompactionTrigger(2)
+            .levelBaseSize(4 * 1024 * 1024)
+            .targetTableSize(2 * 1024 * 1024)
+            .build();
+
+    @Test
+    void overwritesCompactedInBackground(@TempDir File data) throws IOException {
+        final int valueSize = 1024 * 1024;
+        final int keyCount = 10;
+        final List<ByteBuffer> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(randomKey());
+        }
+
+        ByteBuffer value = null;
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, EAGER)) {
+            for (int round = 0; round < 12; round++) {
+                value = randomBuffer(valueSize);
+                for (final ByteBuffer key : keys) {
+                    dao.upsert(key, join(key, value));
+                }
+                // Reads see the latest values while tables are merged and replaced
+                for (final ByteBuffer key : keys) {
+                    assertEquals(join(key, value), dao.get(key));
+                }
+            }
+        }
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, EAGER)) {
+            for (final ByteBuffer key : keys) {
+                assertEquals(join(key, value), dao.get(key));
+            }
+        }
+
+        // Each round overwrites all keys, stale versions must have been merged away
+        final long live = keyCount * (KEY_LENGTH + KEY_LENGTH + valueSize);
+        assertTrue(Files.directorySize(data) < 4 * live);
+    }
+
+    @Test
+    void removedKeysStayRemoved(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, EAGER)) {
+            for (int i = 0; i < 20_000; i++) {
+                final ByteBuffer key = randomKey();
+                dao.upsert(key, randomValue());
+                keys.add(key);
+            }
+            for (int i = 0; i < keys.size(); i += 2) {
+                dao.remove(keys.get(i));
+            }
+            dao.compact();
+        }
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, EAGER)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            final List<ByteBuffer> expected = new ArrayList<>();
+            for (int i = 1; i < keys.size(); i += 2) {
+                expected.add(keys.get(i));
+            }
+            expected.sort(null);
+            for (final ByteBuffer key : expected) {
+                assertEquals(key, records.next().getKey());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+}
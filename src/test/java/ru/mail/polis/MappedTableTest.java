@@ -0,0 +1,60 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Reads records back from memory-mapped disk tables.
+ */
+class MappedTableTest extends TestBase {
+    private static final int SESSIONS = 3;
+    private static final int RECORDS = 100;
+
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key-%04d", index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void lookupsAndSeeks(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        // Each session is flushed to its own table, overwriting and removing records of the older ones
+        for (int session = 0; session < SESSIONS; session++) {
+            try (DAO dao = DAOFactory.create(data)) {
+                for (int i = session * RECORDS / 2; i < session * RECORDS / 2 + RECORDS; i++) {
+                    if (i % 7 == session) {
+                        dao.remove(key(i * 2));
+                        expected.remove(key(i * 2));
+                    } else {
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(key(i * 2), value);
+                        expected.put(key(i * 2), value);
+                    }
+                }
+            }
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertContents(expected, dao);
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(7 * 2)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(3)));
+
+            // Seeks to present and missing keys, before the first one and past the last one
+            assertRecords(expected.subMap(key(80), key(120)), dao.range(key(80), key(120)));
+            assertRecords(expected.subMap(key(81), key(121)), dao.range(key(81), key(121)));
+            assertRecords(expected.tailMap(key(300)), dao.iterator(key(300)));
+            assertRecords(expected, dao.iterator(ByteBuffer.wrap(new byte[]{0})));
+            assertFalse(dao.iterator(key(1000)).hasNext());
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Checks merging of many tables holding overwrites and removals of the same keys.
+ */
+class MergeTest extends TestBase {
+    @Test
+    void newestWinsAcrossTables(@TempDir File data) throws IOException {
+        final ByteBuffer[] keys = new ByteBuffer[200];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = randomKey();
+        }
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        // Every session flushes its own table, so each key is spread over many of them
+        for (int round = 0; round < 13; round++) {
+            try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+                for (int i = 0; i < keys.length / 2; i++) {
+                    final ByteBuffer key = keys[ThreadLocalRandom.current().nextInt(keys.length)];
+                    if (ThreadLocalRandom.current().nextInt(4) == 0) {
+                        dao.remove(key);
+                        expected.remove(key);
+                    } else {
+                        final ByteBuffer value = randomValue();
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                }
+                assertContents(expected, dao);
+            }
+        }
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            assertContents(expected, dao);
+            dao.compact();
+            assertContents(expected, dao);
+        }
+    }
+}
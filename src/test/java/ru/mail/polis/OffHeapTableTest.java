@@ -0,0 +1,134 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.MemTable;
+import ru.mail.polis.s3ponia.OffHeapTable;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+import ru.mail.polis.s3ponia.Table;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs {@link DAO} with memtables kept in direct memory.
+ */
+class OffHeapTableTest extends TestBase {
+    private static final Config OFF_HEAP = Config.builder().offHeapMemTable(true).build();
+
+    @Test
+    void overwriteAndRemove(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer removed = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, OFF_HEAP)) {
+            dao.upsert(key, randomValue());
+            dao.upsert(key, value);
+            dao.upsert(removed, randomValue());
+            dao.remove(removed);
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            dao.upsert(ByteBuffer.allocate(0), ByteBuffer.allocate(0));
+            assertEquals(ByteBuffer.allocate(0), dao.get(ByteBuffer.allocate(0)));
+        }
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, OFF_HEAP)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void scanAcrossFlushes(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, OFF_HEAP)) {
+            // Enough to freeze several memtables, including a record larger than a slab
+            for (int i = 0; i < 10_000; i++) {
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomValue();
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            final ByteBuffer huge = randomKey();
+            final ByteBuffer hugeValue = randomBuffer(2 * 1024 * 1024);
+            dao.upsert(huge, hugeValue);
+            expected.put(huge, hugeValue);
+
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            for (final var entry : expected.entrySet()) {
+                final Record record = records.next();
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(entry.getValue(), record.getValue());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    @Test
+    void slabsReusedAfterFlush(@TempDir File data) throws IOException {
+        final BufferPoolMXBean direct = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> pool.getName().equals("direct"))
+                .findFirst()
+                .orElseThrow();
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, OFF_HEAP)) {
+            dao.upsert(key, value);
+            final ByteBuffer read = dao.get(key);
+            final Record record = dao.iterator(key).next();
+
+            // Memtables are filled and flushed many times over
+            for (int i = 0; i < 10 * MEMORY / 1024; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            // Slabs of the first table hold other records now, records read from it are copies
+            assertEquals(value, read);
+            assertEquals(key, record.getKey());
+            assertEquals(value, record.getValue());
+            // Current table, two waiting for flush, the pool and buffers of table writers
+            assertTrue(direct.getMemoryUsed() < 5 * MEMORY);
+        }
+    }
+
+    @Test
+    void versionsKeptInSequenceOrder() {
+        final MemTable offHeap = new OffHeapTable(0, new ArrayDeque<>());
+        versionsKeptInSequenceOrder(offHeap);
+        offHeap.release();
+        versionsKeptInSequenceOrder(new Table(0));
+    }
+
+    private static void versionsKeptInSequenceOrder(final MemTable table) {
+        final ByteBuffer key = randomKey();
+        // Concurrent writers of a key may apply their records in any order
+        for (final int sequence : new int[]{2, 4, 1, 3}) {
+            table.upsert(key, new Table.Value(randomValue(), sequence, 0));
+        }
+
+        assertNull(table.get(key, 0));
+        for (int sequence = 1; sequence <= 4; sequence++) {
+            assertEquals(sequence, table.get(key, sequence).getSequence());
+            final Iterator<Table.ICell> cells = table.iterator(key, null, sequence);
+            assertEquals(sequence, cells.next().getValue().getSequence());
+            assertFalse(cells.hasNext());
+        }
+        assertEquals(4, table.iterator().next().getValue().getSequence());
+        assertFalse(table.descendingIterator(null, 0).hasNext());
+        assertEquals(1, table.size());
+    }
+}
@@ -0,0 +1,58 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that point lookups stop at the newest record of the key, tombstones included.
+ */
+class PointLookupTest extends TestBase {
+    @Test
+    void newestRecordWins(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<ByteBuffer> values = new ArrayList<>();
+        final ByteBuffer value = randomValue();
+        // The oldest table holds values of all keys
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            for (int i = 0; i < 1000; i++) {
+                keys.add(randomKey());
+                values.add(randomValue());
+                dao.upsert(keys.get(i), values.get(i));
+            }
+        }
+        final ByteBuffer removed = keys.get(0);
+        final ByteBuffer overwritten = keys.get(1);
+        final ByteBuffer removedInMemory = keys.get(2);
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            dao.remove(removed);
+            dao.upsert(overwritten, value);
+        }
+        assertEquals(2, tableCount(data));
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            dao.remove(removedInMemory);
+
+            // Newer table shadows the value in the older one
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            assertEquals(value, dao.get(overwritten));
+            // Memtable shadows both tables
+            assertThrows(NoSuchElementException.class, () -> dao.get(removedInMemory));
+            // Keys the newer records do not touch are found in the older table
+            for (int i = 3; i < keys.size(); i++) {
+                assertEquals(values.get(i), dao.get(keys.get(i)));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(randomKey()));
+        }
+    }
+}
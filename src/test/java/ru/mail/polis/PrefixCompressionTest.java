@@ -0,0 +1,89 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks tables with keys sharing long prefixes, which are stored front-coded within blocks.
+ */
+class PrefixCompressionTest extends TestBase {
+    private static ByteBuffer key(final int artist, final int album, final int track) {
+        final String key = String.format("music/library/artist-%05d/album-%03d/track-%03d", artist, album, track);
+        return ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Map<ByteBuffer, ByteBuffer> fill(final File data, final Config config) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            for (int artist = 0; artist < 50; artist++) {
+                for (int album = 0; album < 10; album++) {
+                    for (int track = 0; track < 20; track++) {
+                        final ByteBuffer key = key(artist, album, track);
+                        final ByteBuffer value = ByteBuffer.allocate(Integer.BYTES).putInt(0, track);
+                        dao.upsert(key, value);
+                        records.put(key, value);
+                    }
+                }
+            }
+        }
+        return records;
+    }
+
+    @Test
+    void sharedPrefixesShrinkTables(@TempDir File data) throws IOException {
+        final File whole = new File(data, "whole");
+        final File prefixed = new File(data, "prefixed");
+        assertTrue(whole.mkdir() && prefixed.mkdir());
+        fill(whole, Config.builder().blockRestartInterval(1).build());
+        fill(prefixed, Config.defaults());
+
+        assertTrue(Files.directorySize(prefixed) < Files.directorySize(whole) * 2 / 3);
+    }
+
+    @Test
+    void readsAcrossRestarts(@TempDir File data) throws IOException {
+        // Small blocks and odd interval put restarts and block boundaries everywhere
+        final Config config = Config.builder().blockSize(512).blockRestartInterval(3).build();
+        final Map<ByteBuffer, ByteBuffer> records = fill(data, config);
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : records.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(7, 3, 99)));
+
+            // Seek to a missing key between albums
+            final ByteBuffer from = ByteBuffer.wrap("music/library/artist-00007/album-003/u"
+                    .getBytes(StandardCharsets.UTF_8));
+            final Iterator<Record> range = dao.range(from, key(7, 5, 0));
+            for (int track = 0; track < 20; track++) {
+                final Record record = range.next();
+                assertEquals(key(7, 4, track), record.getKey());
+                assertEquals(records.get(key(7, 4, track)), record.getValue());
+            }
+            assertFalse(range.hasNext());
+
+            final Iterator<Record> all = dao.iterator(ByteBuffer.allocate(0));
+            for (final ByteBuffer key : records.keySet()) {
+                assertEquals(key, all.next().getKey());
+            }
+            assertFalse(all.hasNext());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.CompactionStats;
+import ru.mail.polis.s3ponia.CompactionStyle;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs {@link DAO} with size-tiered compaction.
+ */
+class SizeTieredCompactionTest extends TestBase {
+    private static CompactionStats overwrite(final File data, final Config config) throws IOException {
+        final int keyCount = 10;
+        final List<ByteBuffer> keys = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add(randomKey());
+        }
+        ByteBuffer value = null;
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            for (int round = 0; round < 16; round++) {
+                value = randomBuffer(1024 * 1024);
+                for (final ByteBuffer key : keys) {
+                    dao.upsert(key, join(key, value));
+                }
+                for (final ByteBuffer key : keys) {
+                    assertEquals(join(key, value), dao.get(key));
+                }
+            }
+            return dao.getCompactionStats();
+        } finally {
+            try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+                for (final ByteBuffer key : keys) {
+                    assertEquals(join(key, value), dao.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void countsWriteAmplification(@TempDir File data) throws IOException {
+        final CompactionStats stats = overwrite(data, Config.builder()
+                .compactionStyle(CompactionStyle.SIZE_TIERED)
+                .sizeTieredThresholds(4, 8)
+                .build());
+
+        assertTrue(stats.getCompactionCount() > 0);
+        assertTrue(stats.getFlushedBytes() > 0);
+        assertTrue(stats.getCompactedBytes() > 0);
+        assertTrue(stats.getWriteAmplification() > 1);
+    }
+}
@@ -0,0 +1,120 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+import ru.mail.polis.s3ponia.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that a snapshot is not affected by writes and compactions made after it was taken.
+ */
+class SnapshotTest extends TestBase {
+    @Test
+    void isolatedFromLaterWrites(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer removed = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer newValue = randomValue();
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY)) {
+            dao.upsert(key, value);
+            dao.upsert(removed, value);
+            try (Snapshot snapshot = dao.snapshot()) {
+                dao.upsert(key, newValue);
+                dao.remove(removed);
+                dao.upsert(randomKey(), randomValue());
+                dao.compact();
+
+                assertEquals(value, snapshot.get(key));
+                assertEquals(value, snapshot.get(removed));
+                final Iterator<Record> records = snapshot.iterator(ByteBuffer.allocate(0));
+                final List<ByteBuffer> keys = new ArrayList<>();
+                records.forEachRemaining(record -> keys.add(record.getKey()));
+                assertEquals(2, keys.size());
+
+                assertEquals(newValue, dao.get(key));
+                assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+            }
+        }
+    }
+
+    @Test
+    void filesKeptUntilClosed(@TempDir File data) throws IOException {
+        for (int round = 0; round < 2; round++) {
+            try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+                for (int i = 0; i < 100; i++) {
+                    dao.upsert(randomKey(), randomValue());
+                }
+            }
+        }
+
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY)) {
+            final Snapshot snapshot = dao.snapshot();
+            dao.compact();
+            // No iterator is open, the snapshot alone holds compacted tables
+            assertEquals(3, tableCount(data));
+
+            snapshot.close();
+            assertEquals(1, tableCount(data));
+            assertThrows(IllegalStateException.class, () -> snapshot.iterator(ByteBuffer.allocate(0)));
+            assertThrows(IllegalStateException.class, () -> snapshot.get(randomKey()));
+        }
+    }
+
+    @Test
+    void takenWithoutFlush(@TempDir File data) throws IOException {
+        readsOlderVersions(data, Config.defaults());
+    }
+
+    @Test
+    void takenWithoutFlushOffHeap(@TempDir File data) throws IOException {
+        readsOlderVersions(data, Config.builder().offHeapMemTable(true).build());
+    }
+
+    private static void readsOlderVersions(final File data, final Config config) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer added = randomKey();
+        final List<ByteBuffer> values = new ArrayList<>();
+        final List<Snapshot> snapshots = new ArrayList<>();
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            for (int i = 0; i < 3; i++) {
+                values.add(randomValue());
+                dao.upsert(key, values.get(i));
+                snapshots.add(dao.snapshot());
+            }
+            dao.upsert(added, randomValue());
+            dao.remove(key);
+            // Snapshots share the current memtable with writers
+            assertEquals(0, tableCount(data));
+
+            for (int i = 0; i < snapshots.size(); i++) {
+                final Snapshot snapshot = snapshots.get(i);
+                assertEquals(values.get(i), snapshot.get(key));
+                assertThrows(NoSuchElementException.class, () -> snapshot.get(added));
+                final Iterator<Record> records = snapshot.iterator(ByteBuffer.allocate(0));
+                assertEquals(values.get(i), records.next().getValue());
+                assertFalse(records.hasNext());
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+
+            // Flushed table holds the latest versions only, the snapshots keep reading the memtable
+            dao.compact();
+            for (int i = 0; i < snapshots.size(); i++) {
+                assertEquals(values.get(i), snapshots.get(i).get(key));
+                snapshots.get(i).close();
+            }
+        }
+    }
+}
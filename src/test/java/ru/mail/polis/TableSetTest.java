@@ -0,0 +1,43 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Checks that tables read by an open iterator outlive their compaction.
+ */
+class TableSetTest extends TestBase {
+    @Test
+    void compactedTablesKeptUntilIteratorEnds(@TempDir File data) throws IOException {
+        final int count = 100;
+        for (int round = 0; round < 2; round++) {
+            try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+                for (int i = 0; i < count; i++) {
+                    dao.upsert(randomKey(), randomValue());
+                }
+            }
+        }
+        assertEquals(2, tableCount(data));
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            dao.compact();
+            assertEquals(3, tableCount(data));
+
+            for (int i = 0; i < 2 * count; i++) {
+                records.next();
+            }
+            assertFalse(records.hasNext());
+            assertEquals(1, tableCount(data));
+        }
+    }
+}
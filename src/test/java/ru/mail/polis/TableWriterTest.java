@@ -0,0 +1,62 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that records larger than the output buffer of table writer are streamed through it.
+ */
+class TableWriterTest extends TestBase {
+    /* Output buffer of table writer is a megabyte */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    /* Large values stay in tables */
+    private static final Config CONFIG = Config.builder().valueThreshold(0).build();
+
+    @Test
+    void largeRecordsRoundTrip(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        long valueBytes = 0;
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, CONFIG)) {
+            final int[] sizes = {BUFFER_SIZE - 1, BUFFER_SIZE + 1, 3 * BUFFER_SIZE + BUFFER_SIZE / 2};
+            for (final int size : sizes) {
+                // Small records around the large one share buffer with its parts
+                for (int i = 0; i < 10; i++) {
+                    final ByteBuffer key = randomKey();
+                    final ByteBuffer value = randomValue();
+                    dao.upsert(key, value);
+                    expected.put(key, value);
+                    valueBytes += value.remaining();
+                }
+                final ByteBuffer key = randomKey();
+                final ByteBuffer value = randomBuffer(size);
+                dao.upsert(key, value);
+                expected.put(key, value);
+                valueBytes += size;
+            }
+
+            // Flushes memtable before compacting
+            dao.compact();
+            assertContents(expected, dao);
+        }
+
+        // Every value reached a table in full
+        long tableBytes = 0;
+        for (final File table : data.listFiles((dir, name) -> name.endsWith(".db"))) {
+            tableBytes += table.length();
+        }
+        assertTrue(tableBytes > valueBytes);
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, CONFIG)) {
+            assertContents(expected, dao);
+        }
+    }
+}
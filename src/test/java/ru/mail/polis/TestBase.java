@@ -18,9 +18,17 @@ package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
 import java.util.concurrent.ThreadLocalRandom;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
 /**
  * Contains utility methods for unit tests.
  *
@@ -29,6 +37,8 @@ import java.util.concurrent.ThreadLocalRandom;
 abstract class TestBase {
     static final int KEY_LENGTH = 16;
     private static final int VALUE_LENGTH = 1024;
+    /* Memtables are flushed every few megabytes, so records spread over several tables */
+    static final long MEMORY = DAOFactory.MAX_HEAP / 16;
 
     @NotNull
     static ByteBuffer randomBuffer(final int length) {
@@ -58,4 +68,35 @@ abstract class TestBase {
         result.rewind();
         return result;
     }
+
+    static int tableCount(@NotNull final File data) {
+        final File[] tables = data.listFiles((dir, name) -> name.endsWith(".db"));
+        return tables == null ? 0 : tables.length;
+    }
+
+    /**
+     * Checks that iterator returns exactly the records of the map in its order.
+     */
+    static void assertRecords(
+            @NotNull final Map<ByteBuffer, ByteBuffer> expected,
+            @NotNull final Iterator<Record> records) {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    /**
+     * Checks that each record is found by key and the store holds nothing else.
+     */
+    static void assertContents(
+            @NotNull final SortedMap<ByteBuffer, ByteBuffer> expected,
+            @NotNull final DAO dao) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        assertRecords(expected, dao.iterator(ByteBuffer.allocate(0)));
+    }
 }
@@ -0,0 +1,171 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+import ru.mail.polis.s3ponia.Snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks large values kept in value log apart from tables.
+ */
+class ValueLogTest extends TestBase {
+    private static final int VALUE_SIZE = 64 * 1024;
+    private static final Config SEPARATED = Config.builder()
+            .valueThreshold(1024)
+            .valueLogFileSize(1024 * 1024)
+            .build();
+
+    private static long valueLogSize(final File data) {
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(".vlog"));
+        long size = 0;
+        for (final File file : files == null ? new File[0] : files) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private static List<ByteBuffer> keys(final int count) {
+        final List<ByteBuffer> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(randomKey());
+        }
+        return keys;
+    }
+
+    private static SortedMap<ByteBuffer, ByteBuffer> overwrite(final DAO dao, final List<ByteBuffer> keys,
+                                                         final int rounds) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> records = new TreeMap<>();
+        for (int round = 0; round < rounds; round++) {
+            for (final ByteBuffer key : keys) {
+                final ByteBuffer value = randomBuffer(VALUE_SIZE);
+                dao.upsert(key, value);
+                records.put(key, value);
+            }
+        }
+        return records;
+    }
+
+    @Test
+    void interruptedReaderKeepsFileOpen(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = keys(10);
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, SEPARATED)) {
+            final SortedMap<ByteBuffer, ByteBuffer> records = overwrite(dao, keys, 1);
+            dao.compact();
+
+            Thread.currentThread().interrupt();
+            try {
+                assertEquals(records.get(keys.get(0)), dao.get(keys.get(0)));
+            } finally {
+                // Interrupt status is kept for the caller
+                assertTrue(Thread.interrupted());
+            }
+
+            // Other readers are not affected
+            assertContents(records, dao);
+        }
+    }
+
+    @Test
+    void compactionCopiesPointers(@TempDir File data) throws IOException {
+        final File inline = new File(data, "inline");
+        final File separated = new File(data, "separated");
+        assertTrue(inline.mkdir() && separated.mkdir());
+        final List<ByteBuffer> keys = keys(50);
+
+        final long inlineBytes;
+        try (PersistenceDAO dao = PersistenceDAO.of(inline, MEMORY, Config.builder().valueThreshold(0).build())) {
+            overwrite(dao, keys, 8);
+            dao.compact();
+            inlineBytes = dao.getCompactionStats().getCompactedBytes();
+        }
+        try (PersistenceDAO dao = PersistenceDAO.of(separated, MEMORY, SEPARATED)) {
+            final SortedMap<ByteBuffer, ByteBuffer> records = overwrite(dao, keys, 8);
+            dao.compact();
+            assertTrue(dao.getCompactionStats().getCompactedBytes() < inlineBytes / 10);
+            assertContents(records, dao);
+        }
+    }
+
+    @Test
+    void collectionDeletesGarbage(@TempDir File data) throws IOException {
+        // Values of the keys take more than one memtable, so earlier ones are flushed to value log
+        final List<ByteBuffer> keys = keys(100);
+        final SortedMap<ByteBuffer, ByteBuffer> records;
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, SEPARATED)) {
+            records = overwrite(dao, keys, 10);
+            dao.collectValueLog();
+            assertContents(records, dao);
+            // Every file holding more than half garbage is gone
+            final long live = keys.size() * (long) VALUE_SIZE;
+            assertTrue(valueLogSize(data) < 2 * live);
+        }
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, SEPARATED)) {
+            assertContents(records, dao);
+        }
+    }
+
+    @Test
+    void writesDuringCollectionWin(@TempDir File data) throws Exception {
+        final List<ByteBuffer> keys = keys(100);
+        final SortedMap<ByteBuffer, ByteBuffer> records;
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, SEPARATED)) {
+            records = overwrite(dao, keys, 1);
+        }
+        // Half of every file becomes garbage, the other half is relocated by collection
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, SEPARATED)) {
+            for (int i = 0; i < keys.size(); i += 2) {
+                records.putAll(overwrite(dao, keys.subList(i, i + 1), 1));
+            }
+        }
+
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, SEPARATED)) {
+            final Thread writer = new Thread(() -> {
+                try {
+                    for (int i = 1; i < keys.size(); i += 2) {
+                        records.putAll(overwrite(dao, keys.subList(i, i + 1), 1));
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            // Writers are not blocked by collection, and relocated values never replace the ones written meanwhile
+            writer.start();
+            dao.collectValueLog();
+            writer.join();
+            assertContents(records, dao);
+        }
+    }
+
+    @Test
+    void snapshotKeepsValueFiles(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = keys(20);
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, SEPARATED)) {
+            final SortedMap<ByteBuffer, ByteBuffer> old = overwrite(dao, keys, 1);
+            final SortedMap<ByteBuffer, ByteBuffer> records;
+            try (Snapshot snapshot = dao.snapshot()) {
+                records = overwrite(dao, keys, 2);
+                dao.compact();
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : old.entrySet()) {
+                    assertEquals(entry.getValue(), snapshot.get(entry.getKey()));
+                }
+            }
+            assertContents(records, dao);
+            // Files dropped by collection are deleted once the snapshot is closed
+            assertTrue(valueLogSize(data) < 2 * keys.size() * (long) VALUE_SIZE);
+        }
+    }
+}
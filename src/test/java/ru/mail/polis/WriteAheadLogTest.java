@@ -0,0 +1,190 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.FsyncPolicy;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that acknowledged writes survive a DAO that was never closed,
+ * and that the log is forced as often as its policy requires.
+ */
+class WriteAheadLogTest extends TestBase {
+    private static final long TIMEOUT_MS = 30_000;
+
+    private static void writeConcurrently(final DAO dao, final ByteBuffer key, final int threads, final int writes)
+            throws InterruptedException {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            final Thread writer = new Thread(() -> {
+                try {
+                    for (int j = 0; j < writes; j++) {
+                        dao.upsert(key, randomValue());
+                    }
+                } catch (IOException | RuntimeException | Error e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (final Thread writer : writers) {
+            writer.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError("Writer failed", failure.get());
+        }
+    }
+
+    @Test
+    void recoverWithoutClose(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer removed = randomKey();
+        final Config config = Config.builder().fsyncPolicy(FsyncPolicy.PER_WRITE).build();
+
+        // Simulate crash: the DAO is abandoned without flush
+        final DAO crashed = PersistenceDAO.of(data, MEMORY, config);
+        crashed.upsert(removed, randomValue());
+        crashed.upsert(key, value);
+        crashed.remove(removed);
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void ignoreTornTail(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final Config config = Config.builder().fsyncPolicy(FsyncPolicy.ON_FLUSH).build();
+
+        final DAO crashed = PersistenceDAO.of(data, MEMORY, config);
+        crashed.upsert(key, value);
+
+        // Half-written record after the complete one
+        final File[] segments = data.listFiles((dir, name) -> name.endsWith(".wal"));
+        assertEquals(1, segments.length);
+        try (FileChannel channel = FileChannel.open(segments[0].toPath(), StandardOpenOption.APPEND)) {
+            channel.write(randomBuffer(7));
+        }
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            assertEquals(value, dao.get(key));
+        }
+        assertEquals(0, data.listFiles((dir, name) -> name.endsWith(".wal")).length);
+    }
+
+    @Test
+    void concurrentWritesRecoveredInOrder(@TempDir File data) throws IOException, InterruptedException {
+        final ByteBuffer key = randomKey();
+        final Config config = Config.builder().fsyncPolicy(FsyncPolicy.ON_FLUSH).build();
+
+        final DAO crashed = PersistenceDAO.of(data, MEMORY, config);
+        writeConcurrently(crashed, key, 4, 1000);
+        final ByteBuffer last = crashed.get(key);
+
+        // Log order of concurrent writes may differ from their order in memtable
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            assertEquals(last, dao.get(key));
+        }
+    }
+
+    @Test
+    void perWriteForcesShared(@TempDir File data) throws IOException, InterruptedException {
+        final Config config = Config.builder().fsyncPolicy(FsyncPolicy.PER_WRITE).build();
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            // A single writer forces every record
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            assertEquals(100, dao.getLogSyncCount());
+
+            // Writers queued behind a force find their records forced by it
+            final int threads = 8;
+            final int writes = 500;
+            writeConcurrently(dao, randomKey(), threads, writes);
+            final long syncs = dao.getLogSyncCount() - 100;
+            assertTrue(syncs > 0);
+            assertTrue(syncs < threads * writes);
+        }
+    }
+
+    @Test
+    void interruptedWriterKeepsLogOpen(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final Config config = Config.builder().fsyncPolicy(FsyncPolicy.PER_WRITE).build();
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            Thread.currentThread().interrupt();
+            try {
+                dao.upsert(randomKey(), randomValue());
+            } finally {
+                // Interrupt status is kept for the caller
+                assertTrue(Thread.interrupted());
+            }
+
+            // Other writers are not affected
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+        }
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void periodicForcesInBackground(@TempDir File data) throws IOException, InterruptedException {
+        final Config config = Config.builder().fsyncPolicy(FsyncPolicy.PERIODIC).fsyncIntervalMs(10).build();
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            // Nothing to force yet
+            Thread.sleep(50);
+            assertEquals(0, dao.getLogSyncCount());
+
+            for (int i = 0; i < 100; i++) {
+                dao.upsert(randomKey(), randomValue());
+            }
+            final long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (dao.getLogSyncCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // Writers do not wait for forces
+            assertTrue(dao.getLogSyncCount() > 0);
+            assertTrue(dao.getLogSyncCount() < 100);
+        }
+    }
+
+    @Test
+    void onFlushNeverForces(@TempDir File data) throws IOException, InterruptedException {
+        final Config config = Config.builder().fsyncPolicy(FsyncPolicy.ON_FLUSH).build();
+        try (PersistenceDAO dao = PersistenceDAO.of(data, MEMORY, config)) {
+            writeConcurrently(dao, randomKey(), 4, 100);
+            dao.compact();
+            assertEquals(0, dao.getLogSyncCount());
+        }
+    }
+}
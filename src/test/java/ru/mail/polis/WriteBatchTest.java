@@ -0,0 +1,148 @@
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.s3ponia.Config;
+import ru.mail.polis.s3ponia.FsyncPolicy;
+import ru.mail.polis.s3ponia.PersistenceDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that a batch is applied in order, read and recovered as a whole.
+ */
+class WriteBatchTest extends TestBase {
+    private static final Config CONFIG = Config.builder().fsyncPolicy(FsyncPolicy.ON_FLUSH).build();
+
+    @Test
+    void appliedInOrder(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer removed = randomKey();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            dao.upsert(removed, randomValue());
+            dao.write(new WriteBatch()
+                    .upsert(key, randomValue())
+                    .remove(removed)
+                    .upsert(key, value));
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void readersSeeWholeBatches(@TempDir File data) throws Exception {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            keys.add(randomKey());
+        }
+        keys.sort(null);
+        try (DAO dao = PersistenceDAO.of(data, MEMORY)) {
+            final AtomicBoolean done = new AtomicBoolean();
+            final Thread writer = new Thread(() -> {
+                try {
+                    // Each batch sets all keys to the same value
+                    for (int round = 0; round < 2_000; round++) {
+                        final ByteBuffer value = randomValue();
+                        final WriteBatch batch = new WriteBatch();
+                        keys.forEach(key -> batch.upsert(key, value));
+                        dao.write(batch);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    done.set(true);
+                }
+            });
+            writer.start();
+            while (!done.get()) {
+                final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+                if (!records.hasNext()) {
+                    continue;
+                }
+                final ByteBuffer value = records.next().getValue();
+                int count = 1;
+                while (records.hasNext()) {
+                    assertEquals(value, records.next().getValue());
+                    count++;
+                }
+                assertEquals(keys.size(), count);
+            }
+            writer.join();
+        }
+    }
+
+    @Test
+    void recoveredWhole(@TempDir File data) throws IOException {
+        final ByteBuffer single = randomKey();
+        final ByteBuffer singleValue = randomValue();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<ByteBuffer> values = new ArrayList<>();
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < 100; i++) {
+            keys.add(randomKey());
+            values.add(randomValue());
+            batch.upsert(keys.get(i), values.get(i));
+        }
+
+        // Simulate crash: the DAO is abandoned without flush
+        final DAO crashed = PersistenceDAO.of(data, MEMORY, CONFIG);
+        crashed.upsert(single, singleValue);
+        crashed.write(batch);
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, CONFIG)) {
+            assertEquals(singleValue, dao.get(single));
+            for (int i = 0; i < keys.size(); i++) {
+                assertEquals(values.get(i), dao.get(keys.get(i)));
+            }
+        }
+    }
+
+    @Test
+    void tornBatchDropped(@TempDir File data) throws IOException {
+        final ByteBuffer single = randomKey();
+        final ByteBuffer singleValue = randomValue();
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < 100; i++) {
+            keys.add(randomKey());
+            batch.upsert(keys.get(i), randomValue());
+        }
+
+        final DAO crashed = PersistenceDAO.of(data, MEMORY, CONFIG);
+        crashed.upsert(single, singleValue);
+        crashed.write(batch);
+
+        // Cut the tail of the batch record
+        final File[] segments = data.listFiles((dir, name) -> name.endsWith(".wal"));
+        assertEquals(1, segments.length);
+        try (FileChannel channel = FileChannel.open(segments[0].toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        try (DAO dao = PersistenceDAO.of(data, MEMORY, CONFIG)) {
+            assertEquals(singleValue, dao.get(single));
+            for (final ByteBuffer key : keys) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+    }
+}